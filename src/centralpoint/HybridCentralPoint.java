@@ -23,18 +23,25 @@
  */
 package centralpoint;
 
+import netlib.Codec;
+import netlib.Dispatcher;
+import netlib.EventLoopGroup;
+import netlib.Frame;
 import netlib.NetEventListener;
 import netlib.Server;
-import netlib.PeerInfo;
+import netlib.PooledBuffer;
+import netlib.SlowConsumerPolicy;
 
 import java.io.IOException;
 
+import java.net.InetSocketAddress;
+
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Random;
+
+import java.util.concurrent.ThreadLocalRandom;
 /*
  * This class simulates a peer-to-peer hybrid model.
  * However, this is not all of the model, this is just
@@ -42,30 +49,98 @@ import java.util.List;
  * with to retrieve a list of available peers.
  *
  * Every peer has to acknowledge himself to this server.
+ * Requests and replies are netlib frames (See netlib/Frame.java),
+ * the bytes below are the frame opcodes.
+ * Addresses are encoded with Codec.putAddress() (Family byte, 4 or 16
+ * address bytes, varint port), counts are varints.
  * Few notes on the bytes used:
  *		Once a peer has connected to this server, it must send:
  *		1. 0x1A to retrieve the peer list.
- *			The peer list is sent as follows:
- *				Integer - Number of available peers
- *				byte[4] - for each peer address
- *				Integer - Peer port
+ *			The peer list is sent back in a 0x1A frame as follows:
+ *				Varint  - Number of available peers
+ *				Address - for each peer
+ *				Long    - version of the list (See 0x1D)
  *			So for example:
  *				3
  *				127.0.0.1		-> 9119
  *				192.168.1.1		-> 4841
- *				138.158.15.69	-> 5165
+ *				2001:db8::15		-> 5165
  *		2. 0x1B to acknowledge self.
  *			Integer - port
+ *			The peer is listed until its connection closes or it
+ *			fails to send 0x1B again within PEER_TTL, announcing
+ *			an already listed peer only refreshes it.
+ *			Answered with a 0x1B frame:
+ *				Address - the peer as listed, that is the address
+ *					  its connection comes from (Behind NAT,
+ *					  not the one it has) and the port.
+ *		3. 0x1C to retrieve part of the peer list.
+ *				Varint  - offset of the first peer
+ *				Varint  - max number of peers (Up to MAX_PAGE)
+ *				Byte    - flags:
+ *					QUERY_SAMPLE: random peers instead, offset
+ *						is ignored.
+ *					QUERY_SUBNET: followed by an Address (The
+ *						port is ignored) and Byte prefix
+ *						length, only peers inside that
+ *						network are listed.
+ *			Answered with a 0x1C frame:
+ *				Varint  - Number of matching peers
+ *				Varint  - Number of peers in this frame
+ *				Address - for each peer
+ *				Long    - version of the list the page is from
+ *			Ask again with offset + count until offset reaches the
+ *			number of matching peers.  Should the version change
+ *			in between, the pages may overlap or miss peers.
+ *
+ *		4. 0x1D to ask what changed since a version.
+ *				Long    - version of the list the peer has
+ *			Answered with a 0x1D frame:
+ *				Long    - current version
+ *				Byte    - 1 when the version is too old to tell, the
+ *					  peer should ask for the whole list again
+ *					  and nothing else follows.
+ *				Varint  - Number of added peers, then the Address
+ *					  of each
+ *				Varint  - Number of removed peers, same
+ *
+ *		The list is encoded once per version (See PeerSnapshot) and
+ *		pages of 0x1C taken at the same version never overlap.
 */
 public class HybridCentralPoint implements NetEventListener
 {
+	// Peers that did not re-announce themselves within this are dropped.
+	public static final long PEER_TTL = 5 * 60 * 1000;
+
+	public static final int MAX_PAGE = 1024;
+	public static final int QUERY_SAMPLE = 0x01;
+	public static final int QUERY_SUBNET = 0x02;
+
 	private Server m_server;
-	private List m_peers = new LinkedList();
+	private EventLoopGroup m_group;
+	private PeerRegistry m_registry = new PeerRegistry(PEER_TTL);
 
 	public HybridCentralPoint() throws IOException
 	{
-		m_server = new Server(null, 9118, this);
-		new Thread(m_server).start();
+		// Building peer lists must not hold up the selector threads.
+		EventLoopGroup group = new EventLoopGroup();
+		group.setDispatcher(Dispatcher.fixedPool(Runtime.getRuntime().availableProcessors()));
+		// A client that does not read its peer list is not worth queueing for.
+		group.setSlowConsumerPolicy(SlowConsumerPolicy.disconnect());
+
+		m_group = group;
+		m_server = new Server(null, 9118, this, group);
+		scheduleExpiry();
+	}
+
+	private void scheduleExpiry()
+	{
+		m_group.next().schedule(new Runnable() {
+			public void run() {
+				m_registry.expire();
+				scheduleExpiry();
+			}
+		}, PEER_TTL / 4);
 	}
 
 	@Override
@@ -78,50 +153,162 @@ public class HybridCentralPoint implements NetEventListener
 	public boolean handleRead(SocketChannel ch, ByteBuffer buf, int nread)
 	{
 		try {
-			while (buf.hasRemaining()) {
-				byte request = buf.get();
+			byte request = buf.get();
+
+			switch (request) {
+			case 0x1A: {
+				// Same bytes for everyone until the registry changes.
+				m_server.send(ch, m_registry.getSnapshot().frame());
+				break;
+			} case 0x1B: {
+				int port = buf.getInt();
+				InetSocketAddress self = new InetSocketAddress(ch.socket().getInetAddress(), port);
+				m_registry.announce(ch, self.getAddress(), port);
+
+				PooledBuffer frame = Frame.acquire(0x1B, Codec.addressSize(self));
+				Codec.putAddress(frame.buffer(), self);
+				frame.buffer().flip();
+				m_server.send(ch, frame);
+				break;
+			} case 0x1C:
+				query(ch, buf);
+				break;
+			case 0x1D:
+				delta(ch, buf.getLong());
+				break;
+			default:
+				return false;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			return false;
+		}
 
-				switch (request) {
-				case 0x1A: {
-					ByteBuffer out = ByteBuffer.allocate(1024);
-					out.putInt(m_peers.size());
+		return true;
+	}
 
-					Iterator it = m_peers.iterator();
-					while (it.hasNext()) {
-						PeerInfo info = (PeerInfo) it.next();
+	/*
+	 * Served from the current snapshot: paging is O(limit), filters and
+	 * sampling one pass over it.  The reply is sized for the peers
+	 * actually in it.
+	*/
+	private void query(SocketChannel ch, ByteBuffer buf)
+	{
+		int offset = Codec.getVarint(buf);
+		int limit = Codec.getVarint(buf);
+		int flags = buf.get();
+		if (offset < 0 || limit < 0)
+			throw new IllegalArgumentException("bad peer list query");
+		limit = Math.min(limit, MAX_PAGE);
 
-						out.put(info.address.getAddress());
-						out.putInt(info.port);
-					}
+		byte[] network = null;
+		int prefix = 0;
+		if ((flags & QUERY_SUBNET) != 0) {
+			network = Codec.getAddress(buf).getAddress().getAddress();
+			prefix = buf.get() & 0xFF;
+			if (prefix > network.length * 8)
+				throw new IllegalArgumentException("bad subnet prefix " + prefix);
+		}
 
-					m_server.send(ch, out.array());
-					break;
-				} case 0x1B: {
-					PeerInfo info = new PeerInfo();
-					info.port = buf.getInt();
-					info.address = ch.socket().getInetAddress();
-
-					Iterator it = m_peers.iterator();
-					while (it.hasNext()) {
-						PeerInfo i = (PeerInfo) it.next();
-						if (i.port == info.port && i.address.equals(info.address))
-							return false;
-					}
+		PeerSnapshot snap = m_registry.getSnapshot();
+		InetSocketAddress[] page = new InetSocketAddress[limit];
+		int count = 0;
+		int total = 0;
+
+		if ((flags & (QUERY_SAMPLE | QUERY_SUBNET)) == 0) {
+			total = snap.size();
+			for (int i = offset; i < total && count < limit; ++i)
+				page[count++] = snap.get(i);
+		} else {
+			boolean sample = (flags & QUERY_SAMPLE) != 0;
+			Random random = ThreadLocalRandom.current();
+			for (int i = 0; i < snap.size(); ++i) {
+				InetSocketAddress peer = snap.get(i);
+				if (network != null && !inNetwork(peer, network, prefix))
+					continue;
 
-					m_peers.add(info);
-					break;
-				} default:
-					return false;
-				}
+				if (sample) {
+					// Reservoir sampling, each match is equally likely to be kept.
+					if (count < limit)
+						page[count++] = peer;
+					else {
+						int j = random.nextInt(total + 1);
+						if (j < limit)
+							page[j] = peer;
+					}
+				} else if (total >= offset && count < limit)
+					page[count++] = peer;
+				++total;
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
+		}
+
+		int size = Codec.varintSize(total) + Codec.varintSize(count) + 8;
+		for (int i = 0; i < count; ++i)
+			size += Codec.addressSize(page[i]);
+
+		PooledBuffer frame = Frame.acquire(0x1C, size);
+		ByteBuffer out = frame.buffer();
+		Codec.putVarint(out, total);
+		Codec.putVarint(out, count);
+		for (int i = 0; i < count; ++i)
+			Codec.putAddress(out, page[i]);
+		out.putLong(snap.version);
+
+		out.flip();
+		m_server.send(ch, frame);
+	}
+
+	private static boolean inNetwork(InetSocketAddress peer, byte[] network, int prefix)
+	{
+		byte[] addr = peer.getAddress().getAddress();
+		if (addr.length != network.length)
 			return false;
+
+		for (int i = 0; prefix > 0; ++i, prefix -= 8) {
+			int mask = prefix >= 8 ? 0xFF : (0xFF << (8 - prefix)) & 0xFF;
+			if (((addr[i] ^ network[i]) & mask) != 0)
+				return false;
 		}
 
 		return true;
 	}
 
+	private static int addressesSize(InetSocketAddress[] addrs)
+	{
+		int size = Codec.varintSize(addrs.length);
+		for (int i = 0; i < addrs.length; ++i)
+			size += Codec.addressSize(addrs[i]);
+		return size;
+	}
+
+	private static void putAddresses(ByteBuffer out, InetSocketAddress[] addrs)
+	{
+		Codec.putVarint(out, addrs.length);
+		for (int i = 0; i < addrs.length; ++i)
+			Codec.putAddress(out, addrs[i]);
+	}
+
+	private void delta(SocketChannel ch, long since)
+	{
+		PeerRegistry.Delta delta = m_registry.changesSince(since);
+		PooledBuffer frame;
+		if (delta == null) {
+			frame = Frame.acquire(0x1D, 9);
+			frame.buffer().putLong(m_registry.getVersion());
+			frame.buffer().put((byte) 1);
+		} else {
+			frame = Frame.acquire(0x1D, 9 + addressesSize(delta.added) + addressesSize(delta.removed));
+			ByteBuffer out = frame.buffer();
+			out.putLong(delta.version);
+			out.put((byte) 0);
+			putAddresses(out, delta.added);
+			putAddresses(out, delta.removed);
+		}
+
+		frame.buffer().flip();
+		m_server.send(ch, frame);
+	}
+
 	@Override
 	public boolean handleConnection(SocketChannel ch)
 	{
@@ -131,9 +318,15 @@ public class HybridCentralPoint implements NetEventListener
 	@Override
 	public boolean handleConnectionClose(SocketChannel ch)
 	{
+		m_registry.remove(ch);
 		return true;
 	}
 
+	@Override
+	public void handleWritabilityChanged(SocketChannel ch, boolean writable)
+	{
+	}
+
 	public static void main(String args[])
 	{
 		try {
@@ -0,0 +1,300 @@
+/*
+ * P2PChat - Peer-to-Peer Chat Application
+ *
+ * Copyright (c) 2014 Ahmed Samy  <f.fallen45@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package centralpoint;
+
+import netlib.PeerInfo;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import java.nio.channels.SocketChannel;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Peers announced to the central point, keyed by (address, port) so
+ * that announcing is O(1) whatever the number of peers.  Safe from any
+ * thread.
+ *
+ * An entry lives for @ttl milliseconds after its last announcement and
+ * goes away with the connection that announced it, whichever is first.
+ *
+ * Every addition or removal of a peer bumps the version and is
+ * kept in a bounded change log.  That is what the cached, pre-encoded
+ * list (getSnapshot()) is rebuilt from and what answers delta requests
+ * (changesSince()).  A plain re-announcement changes nothing.
+*/
+public class PeerRegistry
+{
+	private static class Entry
+	{
+		final PeerInfo info;
+		final InetSocketAddress key;
+		final SocketChannel channel;
+		volatile long expiresAt;
+
+		Entry(PeerInfo info, InetSocketAddress key, SocketChannel channel, long expiresAt)
+		{
+			this.info = info;
+			this.key = key;
+			this.channel = channel;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private final Map entries = new ConcurrentHashMap();	/* InetSocketAddress -> Entry */
+	private final Map byChannel = new ConcurrentHashMap();	/* SocketChannel -> Entry */
+	private final long ttl;
+
+	// Change log, a ring of the last changes: version v is at v % size.
+	// Guarded by itself.
+	private final InetSocketAddress[] logKeys;
+	private final boolean[] logAdded;
+	private int logCount = 0;
+	private volatile long version = 0;
+
+	private volatile PeerSnapshot snapshot;
+	private final Object snapshotLock = new Object();
+
+	/*
+	 * What changed between two versions, netted out (A peer that came
+	 * and went in between is in neither list).
+	*/
+	public static class Delta
+	{
+		public final long version;
+		public final InetSocketAddress[] added;
+		public final InetSocketAddress[] removed;
+
+		Delta(long version, InetSocketAddress[] added, InetSocketAddress[] removed)
+		{
+			this.version = version;
+			this.added = added;
+			this.removed = removed;
+		}
+	}
+
+	public PeerRegistry(long ttl)
+	{
+		this(ttl, 4096);
+	}
+
+	// @logSize: how many changes back changesSince() can go.
+	public PeerRegistry(long ttl, int logSize)
+	{
+		this.ttl = ttl;
+		this.logKeys = new InetSocketAddress[logSize];
+		this.logAdded = new boolean[logSize];
+	}
+
+	public long getVersion()
+	{
+		return version;
+	}
+
+	private void logChange(Entry entry, boolean added)
+	{
+		synchronized(logKeys) {
+			long v = version + 1;
+			int slot = (int) (v % logKeys.length);
+			logKeys[slot] = entry.key;
+			logAdded[slot] = added;
+			if (logCount < logKeys.length)
+				++logCount;
+			version = v;
+		}
+	}
+
+	/*
+	 * The changes after version @since, or null if the log does not go
+	 * back that far (The caller needs the whole list then).
+	*/
+	public Delta changesSince(long since)
+	{
+		Map net = new LinkedHashMap();	/* InetSocketAddress -> Boolean, last change wins */
+		long v;
+		synchronized(logKeys) {
+			v = version;
+			if (since > v || v - since > logCount)
+				return null;
+
+			for (long i = since + 1; i <= v; ++i) {
+				int slot = (int) (i % logKeys.length);
+				InetSocketAddress key = logKeys[slot];
+				net.remove(key);
+				net.put(key, Boolean.valueOf(logAdded[slot]));
+			}
+		}
+
+		int nAdded = 0;
+		Iterator it = net.values().iterator();
+		while (it.hasNext())
+			if (((Boolean) it.next()).booleanValue())
+				++nAdded;
+
+		InetSocketAddress[] added = new InetSocketAddress[nAdded];
+		InetSocketAddress[] removed = new InetSocketAddress[net.size() - nAdded];
+		int a = 0, r = 0;
+		it = net.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry e = (Map.Entry) it.next();
+			InetSocketAddress key = (InetSocketAddress) e.getKey();
+			if (((Boolean) e.getValue()).booleanValue())
+				added[a++] = key;
+			else
+				removed[r++] = key;
+		}
+
+		return new Delta(v, added, removed);
+	}
+
+	/*
+	 * The current list, encoded once per version and shared by every
+	 * caller.  Built from the previous one and the change log when
+	 * possible, from scratch otherwise.
+	*/
+	public PeerSnapshot getSnapshot()
+	{
+		PeerSnapshot snap = snapshot;
+		if (snap != null && snap.version == version)
+			return snap;
+
+		synchronized(snapshotLock) {
+			snap = snapshot;
+			if (snap != null && snap.version == version)
+				return snap;
+
+			Delta delta = snap != null ? changesSince(snap.version) : null;
+			if (delta != null)
+				snap = snap.apply(delta);
+			else
+				snap = build();
+
+			snapshot = snap;
+			return snap;
+		}
+	}
+
+	/*
+	 * Changes made while walking the map may or may not be seen, both
+	 * are fine: they have a later version and applying a change twice
+	 * does nothing (See PeerSnapshot.apply()).
+	*/
+	private PeerSnapshot build()
+	{
+		long v = version;
+		InetSocketAddress[] keys = new InetSocketAddress[entries.size()];
+		int count = 0;
+
+		Iterator it = entries.keySet().iterator();
+		while (it.hasNext()) {
+			if (count == keys.length) {
+				InetSocketAddress[] grown = new InetSocketAddress[count * 2 + 1];
+				System.arraycopy(keys, 0, grown, 0, count);
+				keys = grown;
+			}
+			keys[count++] = (InetSocketAddress) it.next();
+		}
+
+		return new PeerSnapshot(v, keys, count);
+	}
+
+	public long getTtl()
+	{
+		return ttl;
+	}
+
+	public int size()
+	{
+		return entries.size();
+	}
+
+	/*
+	 * Add @address:@port, announced over @ch, or refresh its TTL if it
+	 * is already known.  A channel stands for a single peer, announcing
+	 * another port over it replaces the previous entry.
+	 *
+	 * Returns true if the peer was not known before.
+	*/
+	public boolean announce(SocketChannel ch, InetAddress address, int port)
+	{
+		InetSocketAddress key = new InetSocketAddress(address, port);
+		long expiresAt = System.currentTimeMillis() + ttl;
+
+		Entry old = (Entry) byChannel.get(ch);
+		if (old != null && old.key.equals(key)) {
+			old.expiresAt = expiresAt;
+			return false;
+		}
+
+		PeerInfo info = new PeerInfo();
+		info.address = address;
+		info.port = port;
+
+		Entry entry = new Entry(info, key, ch, expiresAt);
+		Entry prev = (Entry) entries.put(key, entry);
+		byChannel.put(ch, entry);
+		if (old != null && entries.remove(old.key, old))
+			logChange(old, false);
+		if (prev != null && prev.channel != ch)
+			byChannel.remove(prev.channel, prev);
+
+		if (prev != null)
+			return false;
+
+		logChange(entry, true);
+		return true;
+	}
+
+	// The connection that announced a peer went away.
+	public void remove(SocketChannel ch)
+	{
+		Entry entry = (Entry) byChannel.remove(ch);
+		if (entry != null && entries.remove(entry.key, entry))
+			logChange(entry, false);
+	}
+
+	// Drop every peer that did not announce itself within the TTL.
+	public int expire()
+	{
+		long now = System.currentTimeMillis();
+		int count = 0;
+
+		Iterator it = entries.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = (Entry) it.next();
+			if (entry.expiresAt <= now && entries.remove(entry.key, entry)) {
+				byChannel.remove(entry.channel, entry);
+				logChange(entry, false);
+				++count;
+			}
+		}
+
+		return count;
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * P2PChat - Peer-to-Peer Chat Application
+ *
+ * Copyright (c) 2014 Ahmed Samy  <f.fallen45@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package centralpoint;
+
+import netlib.Codec;
+import netlib.Frame;
+import netlib.PooledBuffer;
+
+import java.net.InetSocketAddress;
+
+import java.nio.ByteBuffer;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+ * An immutable copy of the peer list at some registry version, with its
+ * 0x1A reply already encoded (See HybridCentralPoint).  Peers are kept
+ * in a stable order: pages taken from the same snapshot never overlap.
+*/
+public class PeerSnapshot
+{
+	public final long version;
+	private final InetSocketAddress[] keys;
+	private final int count;
+	private final PooledBuffer frame;
+
+	PeerSnapshot(long version, InetSocketAddress[] keys, int count)
+	{
+		this.version = version;
+		this.keys = keys;
+		this.count = count;
+
+		int size = Codec.varintSize(count) + 8;
+		for (int i = 0; i < count; ++i)
+			size += Codec.addressSize(keys[i]);
+
+		// Not pooled: the snapshot is dropped without knowing who still
+		// sends it, the garbage collector does.
+		ByteBuffer out = Frame.allocate(0x1A, size);
+		Codec.putVarint(out, count);
+		for (int i = 0; i < count; ++i)
+			Codec.putAddress(out, keys[i]);
+		out.putLong(version);
+		out.flip();
+		frame = PooledBuffer.wrap(out.array());
+	}
+
+	public int size()
+	{
+		return count;
+	}
+
+	public InetSocketAddress get(int index)
+	{
+		if (index < 0 || index >= count)
+			throw new IndexOutOfBoundsException("index " + index + " size " + count);
+
+		return keys[index];
+	}
+
+	// The encoded 0x1A reply, each caller gets its own view to send.
+	public PooledBuffer frame()
+	{
+		return frame.retainedDuplicate();
+	}
+
+	// Peers touched by @delta are dropped, those it added go at the end.
+	PeerSnapshot apply(PeerRegistry.Delta delta)
+	{
+		Set touched = new HashSet();
+		for (int i = 0; i < delta.added.length; ++i)
+			touched.add(delta.added[i]);
+		for (int i = 0; i < delta.removed.length; ++i)
+			touched.add(delta.removed[i]);
+
+		InetSocketAddress[] next = new InetSocketAddress[count + delta.added.length];
+		int n = 0;
+		for (int i = 0; i < count; ++i)
+			if (!touched.contains(keys[i]))
+				next[n++] = keys[i];
+		for (int i = 0; i < delta.added.length; ++i)
+			next[n++] = delta.added[i];
+
+		return new PeerSnapshot(delta.version, next, n);
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ * P2PChat - Peer-to-Peer Chat Application
+ *
+ * Copyright (c) 2014 Ahmed Samy  <f.fallen45@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package netlib;
+
+import java.nio.ByteBuffer;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Pool of direct ByteBuffers in power-of-two size classes (64 bytes up
+ * to 64 KB).  Small classes are carved out of 64 KB slabs so we do not
+ * pay for one direct allocation per buffer; anything bigger than the
+ * largest class is allocated on demand and simply dropped on release.
+ *
+ * Buffers are handed out as PooledBuffer and come back here once their
+ * reference count drops to zero.
+*/
+public class BufferPool
+{
+	private static final int MIN_SHIFT = 6;
+	private static final int MAX_SHIFT = 16;
+	private static final int SLAB_SIZE = 1 << MAX_SHIFT;
+
+	private static BufferPool defaultPool;
+
+	private final ConcurrentLinkedQueue[] free;
+	private final AtomicInteger[] freeCount;
+	private final int maxFreePerClass;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong outstanding = new AtomicLong();
+
+	public BufferPool()
+	{
+		this(1024);
+	}
+
+	public BufferPool(int maxFreePerClass)
+	{
+		int classes = MAX_SHIFT - MIN_SHIFT + 1;
+
+		this.maxFreePerClass = maxFreePerClass;
+		this.free = new ConcurrentLinkedQueue[classes];
+		this.freeCount = new AtomicInteger[classes];
+		for (int i = 0; i < classes; ++i) {
+			free[i] = new ConcurrentLinkedQueue();
+			freeCount[i] = new AtomicInteger();
+		}
+	}
+
+	public static synchronized BufferPool getDefault()
+	{
+		if (defaultPool == null)
+			defaultPool = new BufferPool();
+
+		return defaultPool;
+	}
+
+	private static int sizeClass(int size)
+	{
+		int shift = MIN_SHIFT;
+		while ((1 << shift) < size)
+			++shift;
+
+		return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+	}
+
+	/*
+	 * The returned buffer has position 0 and limit @size, its capacity
+	 * may be bigger.  The caller owns one reference.
+	*/
+	public PooledBuffer acquire(int size)
+	{
+		int cls = sizeClass(size);
+		ByteBuffer buffer = null;
+
+		outstanding.incrementAndGet();
+		if (cls >= 0) {
+			buffer = (ByteBuffer) free[cls].poll();
+			if (buffer != null)
+				freeCount[cls].decrementAndGet();
+		}
+
+		if (buffer != null)
+			hits.incrementAndGet();
+		else {
+			misses.incrementAndGet();
+			buffer = cls >= 0 ? carve(cls) : ByteBuffer.allocateDirect(size);
+		}
+
+		buffer.clear();
+		buffer.limit(size);
+		return new PooledBuffer(buffer, this, cls);
+	}
+
+	private ByteBuffer carve(int cls)
+	{
+		int size = 1 << (cls + MIN_SHIFT);
+		if (size >= SLAB_SIZE)
+			return ByteBuffer.allocateDirect(size);
+
+		ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+		ByteBuffer first = null;
+		for (int off = 0; off < SLAB_SIZE; off += size) {
+			slab.limit(off + size);
+			slab.position(off);
+
+			ByteBuffer chunk = slab.slice();
+			if (first == null)
+				first = chunk;
+			else
+				recycle(cls, chunk);
+		}
+
+		return first;
+	}
+
+	void recycle(int cls, ByteBuffer buffer)
+	{
+		if (cls < 0)
+			return;
+
+		if (freeCount[cls].incrementAndGet() > maxFreePerClass) {
+			freeCount[cls].decrementAndGet();
+			return;
+		}
+
+		free[cls].offer(buffer);
+	}
+
+	void released()
+	{
+		outstanding.decrementAndGet();
+	}
+
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	// Buffers acquired and not released yet.
+	public long getOutstanding()
+	{
+		return outstanding.get();
+	}
+
+	public String toString()
+	{
+		return "hits=" + getHits() + " misses=" + getMisses() + " outstanding=" + getOutstanding();
+	}
+}
@@ -6,21 +6,28 @@
  */
 package netlib;
 
-import java.nio.channels.SocketChannel;
+import java.nio.channels.SelectableChannel;
 
 public class ChangeRequest
 {
 	public static final int REGISTER = 1;
 	public static final int CHANGEOPS = 2;
 
-	public SocketChannel socket;
+	public SelectableChannel socket;
 	public int type;
 	public int ops;
+	public Object attachment;
 
-	public ChangeRequest(SocketChannel socket, int type, int ops)
+	public ChangeRequest(SelectableChannel socket, int type, int ops)
+	{
+		this(socket, type, ops, null);
+	}
+
+	public ChangeRequest(SelectableChannel socket, int type, int ops, Object attachment)
 	{
 		this.socket = socket;
 		this.type = type;
 		this.ops = ops;
+		this.attachment = attachment;
 	}
 }
@@ -0,0 +1,589 @@
+/*
+ * P2PChat - Peer-to-Peer Chat Application
+ *
+ * Copyright (c) 2014 Ahmed Samy  <f.fallen45@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package netlib;
+
+import java.io.IOException;
+
+import java.net.ProtocolException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import java.util.ArrayDeque;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Per-channel state shared by Server and Connection, this is what gets
+ * attached to the channel's SelectionKey.  It owns the frame decoder and
+ * the outbound queue and does the actual reading and writing, the owner
+ * only decides what closing the channel means (closed()).
+ *
+ * Listener callbacks go through the group's Dispatcher, with a
+ * non-inline one every frame is copied out of the decoder first since
+ * the loop goes on reading while the handler runs.
+ *
+ * The outbound queue is bounded by the group's watermarks: past the
+ * high one the channel is unwritable and sends go through the group's
+ * SlowConsumerPolicy, it is writable again once it drains to the low one.
+*/
+abstract class ChannelContext implements SelectHandler
+{
+	final SocketChannel channel;
+	final EventLoop loop;
+
+	private final NetEventListener listener;
+	private final FrameDecoder decoder = new FrameDecoder();
+	private final MpscQueue pendingData = new MpscQueue();	/* of PooledBuffer */
+
+	// Set while OP_WRITE is (or is about to be) set on the key.
+	private final AtomicBoolean writeScheduled = new AtomicBoolean();
+
+	// Set while a close is waiting on the listener.
+	private final AtomicBoolean closing = new AtomicBoolean();
+
+	// Buffers taken off pendingData for the next gathering write, the
+	// first one may be partially written.  Loop thread only.
+	private ByteBuffer[] batch = new ByteBuffer[0];
+	private PooledBuffer[] batchOwners = new PooledBuffer[0];
+	private int batchCount = 0;
+
+	// Bytes accepted by send() and not written yet (The gauge).
+	private final AtomicLong queuedBytes = new AtomicLong();
+	private final AtomicBoolean unwritable = new AtomicBoolean();
+
+	// Frames a trim() kept, they go out before pendingData.  Loop thread only.
+	private final ArrayDeque backlog = new ArrayDeque();	/* of PooledBuffer */
+	private final AtomicBoolean trimScheduled = new AtomicBoolean();
+
+	// Producers waiting in awaitWritable() (SlowConsumerPolicy.BLOCK).
+	private final Object drainLock = new Object();
+	private final AtomicInteger blockedProducers = new AtomicInteger();
+
+	private final Dispatcher dispatcher;
+	private final Dispatcher.Serial serial;	/* null when inline */
+
+	volatile boolean connected;
+	private volatile boolean released;
+
+	ChannelContext(SocketChannel channel, EventLoop loop, NetEventListener listener, boolean connected)
+	{
+		this.channel = channel;
+		this.loop = loop;
+		this.listener = listener;
+		this.connected = connected;
+		this.dispatcher = loop.group.getDispatcher();
+		this.serial = dispatcher.newSerial();
+	}
+
+	// The listener agreed to close, tear the channel down.
+	abstract void closed();
+
+	private void dispatch(Runnable task)
+	{
+		if (serial != null)
+			serial.execute(task);
+		else {
+			long start = System.nanoTime();
+			task.run();
+			dispatcher.recordLatency(start);
+		}
+	}
+
+	void fireConnection()
+	{
+		if (listener == null)
+			return;
+
+		dispatch(new Runnable() {
+			public void run() {
+				if (!listener.handleConnection(channel))
+					closed();
+			}
+		});
+	}
+
+	// Ask the listener, then close.  Safe from any thread.
+	void close()
+	{
+		if (!closing.compareAndSet(false, true))
+			return;
+
+		dispatch(new Runnable() {
+			public void run() {
+				if (released)
+					return;
+
+				if (listener == null || listener.handleConnectionClose(channel))
+					closed();
+				else
+					closing.set(false);
+			}
+		});
+	}
+
+	// Stop selecting on a broken channel while the close goes through.
+	void fail(SelectionKey key)
+	{
+		if (key.isValid())
+			key.interestOps(0);
+		close();
+	}
+
+	/*
+	 * Unlike the other callbacks this one can be triggered by a sending
+	 * thread, with the inline dispatcher it is handed to the loop so that
+	 * the listener is still only ever called from there.
+	*/
+	private void fireWritabilityChanged(final boolean writable)
+	{
+		if (listener == null)
+			return;
+
+		Runnable task = new Runnable() {
+			public void run() {
+				try {
+					if (!released)
+						listener.handleWritabilityChanged(channel, writable);
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					close();
+				}
+			}
+		};
+
+		if (serial != null)
+			serial.execute(task);
+		else
+			loop.execute(task);
+	}
+
+	private boolean fireRead(ByteBuffer frame)
+	{
+		if (listener == null)
+			return true;
+
+		if (serial == null) {
+			long start = System.nanoTime();
+			boolean ret = listener.handleRead(channel, frame, frame.remaining());
+			dispatcher.recordLatency(start);
+			return ret;
+		}
+
+		final PooledBuffer copy = BufferPool.getDefault().acquire(frame.remaining());
+		copy.buffer().put(frame);
+		copy.buffer().flip();
+		serial.execute(new Runnable() {
+			public void run() {
+				try {
+					ByteBuffer buf = copy.buffer();
+					if (!released && !listener.handleRead(channel, buf, buf.remaining()))
+						close();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					close();
+				} finally {
+					copy.release();
+				}
+			}
+		});
+		return true;
+	}
+
+	private void fireWrite(final int count)
+	{
+		if (listener == null)
+			return;
+
+		if (serial == null) {
+			if (!listener.handleWrite(channel, count))
+				close();
+			return;
+		}
+
+		serial.execute(new Runnable() {
+			public void run() {
+				if (!listener.handleWrite(channel, count))
+					close();
+			}
+		});
+	}
+
+	void finishConnection(SelectionKey key) throws IOException
+	{
+	}
+
+	// Only called from the loop thread.
+	int interestOps()
+	{
+		if (batchCount == 0 && backlog.isEmpty() && pendingData.isEmpty())
+			return SelectionKey.OP_READ;
+
+		writeScheduled.set(true);
+		return SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+	}
+
+	public void handleSelect(SelectionKey key) throws IOException
+	{
+		if (key.isConnectable())
+			finishConnection(key);
+		else {
+			if (key.isReadable())
+				read(key);
+			if (key.isValid() && key.isWritable())
+				write(key);
+		}
+	}
+
+	private void read(SelectionKey key) throws IOException
+	{
+		int count;
+		try {
+			count = decoder.read(channel);
+		} catch (IOException e) {
+			fail(key);
+			return;
+		}
+
+		if (count == -1) {
+			fail(key);
+			return;
+		}
+
+		try {
+			ByteBuffer frame;
+			while ((frame = decoder.next()) != null) {
+				if (!fireRead(frame)) {
+					fail(key);
+					return;
+				}
+			}
+		} catch (ProtocolException e) {
+			fail(key);
+		} catch (RuntimeException e) {
+			// A malformed frame (Short string, bad varint...), drop the peer
+			// rather than the whole event loop.
+			e.printStackTrace();
+			fail(key);
+		}
+	}
+
+	/*
+	 * Flush as much as the socket takes, several queued buffers per
+	 * syscall (bounded by the group's max write batch).
+	*/
+	private void write(SelectionKey key) throws IOException
+	{
+		EventLoopGroup group = loop.group;
+		int maxBuffers = group.getMaxWriteBuffers();
+		long maxBytes = group.getMaxWriteBytes();
+		if (batch.length != maxBuffers && batchCount <= maxBuffers) {
+			ByteBuffer[] resized = new ByteBuffer[maxBuffers];
+			PooledBuffer[] owners = new PooledBuffer[maxBuffers];
+			System.arraycopy(batch, 0, resized, 0, batchCount);
+			System.arraycopy(batchOwners, 0, owners, 0, batchCount);
+			batch = resized;
+			batchOwners = owners;
+		}
+
+		long count = 0;
+		while (true) {
+			long batchBytes = 0;
+			for (int i = 0; i < batchCount; ++i)
+				batchBytes += batch[i].remaining();
+
+			PooledBuffer buf;
+			while (batchCount < batch.length && batchBytes < maxBytes
+					&& (buf = nextPending()) != null) {
+				batchOwners[batchCount] = buf;
+				batch[batchCount++] = buf.buffer();
+				batchBytes += buf.buffer().remaining();
+			}
+
+			if (batchCount == 0)
+				break;
+
+			long n;
+			try {
+				n = channel.write(batch, 0, batchCount);
+			} catch (IOException e) {
+				fail(key);
+				return;
+			}
+			count += n;
+			dequeued(n);
+
+			int done = 0;
+			while (done < batchCount && !batch[done].hasRemaining())
+				++done;
+
+			group.getStats().recordWrite(done, n);
+			for (int i = 0; i < done; ++i)
+				batchOwners[i].release();
+			System.arraycopy(batch, done, batch, 0, batchCount - done);
+			System.arraycopy(batchOwners, done, batchOwners, 0, batchCount - done);
+			for (int i = batchCount - done; i < batchCount; ++i) {
+				batch[i] = null;
+				batchOwners[i] = null;
+			}
+			batchCount -= done;
+
+			// Socket buffer is full, wait for the next OP_WRITE.
+			if (batchCount > 0)
+				break;
+		}
+
+		if (batchCount == 0) {
+			// Go idle, unless someone slipped in after the queue drained
+			// and saw writeScheduled still set (So did not wake us up).
+			key.interestOps(SelectionKey.OP_READ);
+			writeScheduled.set(false);
+			if (!pendingData.isEmpty() && writeScheduled.compareAndSet(false, true))
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+
+		fireWrite((int) count);
+	}
+
+	private PooledBuffer nextPending()
+	{
+		if (!backlog.isEmpty())
+			return (PooledBuffer) backlog.poll();
+
+		return (PooledBuffer) pendingData.poll();
+	}
+
+	// @bytes left the queue (Written or dropped).
+	private void dequeued(long bytes)
+	{
+		long queued = queuedBytes.addAndGet(-bytes);
+		if (queued > loop.group.getLowWatermark())
+			return;
+
+		if (unwritable.compareAndSet(true, false))
+			fireWritabilityChanged(true);
+		if (blockedProducers.get() > 0) {
+			synchronized(drainLock) {
+				drainLock.notifyAll();
+			}
+		}
+	}
+
+	long getQueuedBytes()
+	{
+		return queuedBytes.get();
+	}
+
+	boolean isWritable()
+	{
+		return !unwritable.get();
+	}
+
+	/*
+	 * SlowConsumerPolicy.DROP_OLDEST, on the loop thread: walk the queue
+	 * from its head dropping droppable frames until we are back under the
+	 * low watermark.  Frames that have to go out are moved to the backlog,
+	 * in order, and written before whatever is still in pendingData.
+	*/
+	private void trim()
+	{
+		trimScheduled.set(false);
+		if (released)
+			return;
+
+		long low = loop.group.getLowWatermark();
+		NetStats stats = loop.group.getStats();
+		PooledBuffer buf;
+		while (queuedBytes.get() > low && (buf = (PooledBuffer) pendingData.poll()) != null) {
+			if (buf.droppable) {
+				long size = buf.buffer().remaining();
+				buf.release();
+				stats.recordDrop(size);
+				dequeued(size);
+			} else
+				backlog.add(buf);
+		}
+	}
+
+	private void scheduleTrim()
+	{
+		if (trimScheduled.compareAndSet(false, true)) {
+			loop.execute(new Runnable() {
+				public void run() {
+					trim();
+				}
+			});
+		}
+	}
+
+	/*
+	 * SlowConsumerPolicy.BLOCK: wait until the channel drains to its low
+	 * watermark.  False on timeout or if the channel went away meanwhile.
+	 * Event loop threads never wait, their frame is queued regardless.
+	*/
+	private boolean awaitWritable(long timeoutMillis)
+	{
+		if (EventLoop.inAnyEventLoop())
+			return true;
+
+		long low = loop.group.getLowWatermark();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		blockedProducers.incrementAndGet();
+		try {
+			synchronized(drainLock) {
+				while (queuedBytes.get() > low && !released) {
+					long left = deadline - System.nanoTime();
+					if (left <= 0)
+						return false;
+					drainLock.wait(TimeUnit.NANOSECONDS.toMillis(left) + 1);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			blockedProducers.decrementAndGet();
+		}
+
+		return !released;
+	}
+
+	void send(PooledBuffer data)
+	{
+		send(data, false);
+	}
+
+	/*
+	 * May be called from any thread.  The loop is only woken up when
+	 * the channel goes from idle to having data pending, a burst of sends
+	 * costs a single wakeup.
+	 *
+	 * @droppable frames (Voice) may be thrown away by the slow consumer
+	 * policy instead of being queued behind a peer that cannot keep up.
+	*/
+	void send(PooledBuffer data, boolean droppable)
+	{
+		if (released) {
+			data.release();
+			return;
+		}
+
+		EventLoopGroup group = loop.group;
+		long size = data.buffer().remaining();
+		long high = group.getHighWatermark();
+		boolean trim = false;
+		if (queuedBytes.get() + size > high) {
+			SlowConsumerPolicy policy = group.getSlowConsumerPolicy();
+			switch (policy.onOverflow(channel, queuedBytes.get(), high, droppable)) {
+			case SlowConsumerPolicy.REJECT:
+				group.getStats().recordDrop(size);
+				data.release();
+				return;
+			case SlowConsumerPolicy.DISCONNECT:
+				group.getStats().recordSlowConsumer();
+				data.release();
+				close();
+				return;
+			case SlowConsumerPolicy.BLOCK:
+				if (!awaitWritable(policy.getBlockTimeout())) {
+					if (!released)
+						group.getStats().recordSlowConsumer();
+					data.release();
+					close();
+					return;
+				}
+				break;
+			case SlowConsumerPolicy.DROP_OLDEST:
+				trim = true;
+				break;
+			}
+		}
+
+		data.droppable = droppable;
+		long queued = queuedBytes.addAndGet(size);
+		pendingData.offer(data);
+
+		// Closed while we were queueing, release()'s drain may have
+		// missed it.
+		if (released) {
+			loop.execute(new Runnable() {
+				public void run() {
+					drainPending();
+				}
+			});
+			return;
+		}
+
+		if (queued > high && unwritable.compareAndSet(false, true))
+			fireWritabilityChanged(false);
+		if (trim)
+			scheduleTrim();
+
+		// Still connecting, finishConnection() picks the data up.
+		if (connected && writeScheduled.compareAndSet(false, true))
+			loop.changeOps(channel, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	/*
+	 * The channel is closed, give every pooled buffer we hold back.
+	 * Done on the loop thread since that is the only one touching
+	 * the decoder and the write batch.
+	*/
+	void release()
+	{
+		if (released)
+			return;
+
+		released = true;
+		synchronized(drainLock) {
+			drainLock.notifyAll();
+		}
+
+		loop.execute(new Runnable() {
+			public void run() {
+				decoder.release();
+				for (int i = 0; i < batchCount; ++i) {
+					batchOwners[i].release();
+					batchOwners[i] = null;
+					batch[i] = null;
+				}
+				batchCount = 0;
+				drainPending();
+			}
+		});
+	}
+
+	// Loop thread only, once released.
+	private void drainPending()
+	{
+		PooledBuffer buf;
+		while ((buf = nextPending()) != null)
+			buf.release();
+		queuedBytes.set(0);
+	}
+}
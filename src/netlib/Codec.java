@@ -0,0 +1,227 @@
+/*
+ * P2PChat - Peer-to-Peer Chat Application
+ *
+ * Copyright (c) 2014 Ahmed Samy  <f.fallen45@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package netlib;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/*
+ * Wire encoding helpers shared by the protocol encoders.
+ *
+ * Varints are unsigned LEB128 (7 bits per byte, low bits first).
+ * Strings are a varint byte length followed by that many bytes of UTF-8,
+ * so ASCII chat costs one byte per character.  Encoders and decoders are
+ * cached per thread and work on the buffers directly.
+ *
+ * Addresses are a family byte (FAMILY_IPV4 or FAMILY_IPV6), the 4 or 16
+ * address bytes and the port as a varint: 7 bytes for a typical IPv4
+ * peer, 19 for IPv6.
+*/
+public final class Codec
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final ThreadLocal encoders = new ThreadLocal() {
+		protected Object initialValue() {
+			return UTF8.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+	};
+
+	private static final ThreadLocal decoders = new ThreadLocal() {
+		protected Object initialValue() {
+			return UTF8.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+	};
+
+	private static final ThreadLocal charBuffers = new ThreadLocal() {
+		protected Object initialValue() {
+			return CharBuffer.allocate(256);
+		}
+	};
+
+	public static final int FAMILY_IPV4 = 4;
+	public static final int FAMILY_IPV6 = 6;
+
+	private Codec()
+	{
+	}
+
+	public static int varintSize(int value)
+	{
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			++size;
+		}
+
+		return size;
+	}
+
+	public static void putVarint(ByteBuffer buffer, int value)
+	{
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	public static int getVarint(ByteBuffer buffer)
+	{
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+
+		throw new IllegalArgumentException("varint too long");
+	}
+
+	// Number of bytes @str takes in UTF-8, as putString() writes it: an
+	// unpaired surrogate is replaced by a one byte '?'.
+	public static int utf8Length(String str)
+	{
+		int len = str.length();
+		int size = len;
+		for (int i = 0; i < len; ++i) {
+			char c = str.charAt(i);
+			if (c < 0x80)
+				continue;
+
+			if (c < 0x800)
+				size += 1;
+			else if (Character.isHighSurrogate(c) && i + 1 < len
+					&& Character.isLowSurrogate(str.charAt(i + 1))) {
+				size += 2;	// 4 bytes for 2 chars
+				++i;
+			} else if (Character.isSurrogate(c))
+				;	// Unpaired, 1 byte
+			else
+				size += 2;
+		}
+
+		return size;
+	}
+
+	// Bytes putString() writes for @str.
+	public static int stringSize(String str)
+	{
+		int len = utf8Length(str);
+		return varintSize(len) + len;
+	}
+
+	public static void putString(ByteBuffer buffer, String str)
+	{
+		int len = utf8Length(str);
+		putVarint(buffer, len);
+
+		CharsetEncoder encoder = (CharsetEncoder) encoders.get();
+		encoder.reset();
+		encoder.encode(CharBuffer.wrap(str), buffer, true);
+		encoder.flush(buffer);
+	}
+
+	public static String getString(ByteBuffer buffer)
+	{
+		int len = getVarint(buffer);
+		if (len < 0 || len > buffer.remaining())
+			throw new BufferUnderflowException();
+		if (len == 0)
+			return "";
+
+		CharBuffer chars = (CharBuffer) charBuffers.get();
+		if (chars.capacity() < len) {
+			chars = CharBuffer.allocate(len);
+			charBuffers.set(chars);
+		}
+		chars.clear();
+
+		int end = buffer.position() + len;
+		int limit = buffer.limit();
+		buffer.limit(end);
+
+		CharsetDecoder decoder = (CharsetDecoder) decoders.get();
+		decoder.reset();
+		decoder.decode(buffer, chars, true);
+		decoder.flush(chars);
+
+		buffer.limit(limit);
+		buffer.position(end);
+
+		chars.flip();
+		return chars.toString();
+	}
+
+	public static int addressSize(InetSocketAddress address)
+	{
+		return 1 + address.getAddress().getAddress().length + varintSize(address.getPort());
+	}
+
+	public static void putAddress(ByteBuffer buffer, InetSocketAddress address)
+	{
+		byte[] addr = address.getAddress().getAddress();
+		buffer.put((byte) (addr.length == 4 ? FAMILY_IPV4 : FAMILY_IPV6));
+		buffer.put(addr);
+		putVarint(buffer, address.getPort());
+	}
+
+	// Never does a name lookup.
+	public static InetSocketAddress getAddress(ByteBuffer buffer)
+	{
+		int family = buffer.get();
+		byte[] addr;
+		if (family == FAMILY_IPV4)
+			addr = new byte[4];
+		else if (family == FAMILY_IPV6)
+			addr = new byte[16];
+		else
+			throw new IllegalArgumentException("bad address family " + family);
+
+		buffer.get(addr);
+		int port = getVarint(buffer);
+		if (port < 0 || port > 0xFFFF)
+			throw new IllegalArgumentException("bad port " + port);
+
+		try {
+			return new InetSocketAddress(InetAddress.getByAddress(addr), port);
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException(e);	/* Can't happen, the length is right */
+		}
+	}
+}
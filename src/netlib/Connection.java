@@ -11,67 +11,76 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 
-import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.nio.channels.spi.SelectorProvider;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-
-public class Connection implements Runnable
+public class Connection
 {
 	private InetAddress hostAddress;
 	private int port;
 
-	private Selector selector;
 	private SocketChannel channel;
 	private NetEventListener listener;
+	private ChannelContext context;
+	private int initialOps;
 
-	private final List changeRequests = new LinkedList();
-	private final List pendingData = new ArrayList();
-
-	private boolean connected = false;
+	private volatile boolean closed = false;
 
 	public Connection(InetAddress hostAddress, int port, NetEventListener listener) throws IOException
+	{
+		this(hostAddress, port, listener, EventLoopGroup.getDefault());
+	}
+
+	public Connection(InetAddress hostAddress, int port, NetEventListener listener, EventLoopGroup group) throws IOException
 	{
 		this.hostAddress = hostAddress;
 		this.port = port;
-		this.selector = this.initSelector();
 		this.listener = listener;
-		this.channel = this.initiateConnection();
+		this.channel = SocketChannel.open();
+		this.channel.configureBlocking(false);
+		this.context = newContext(group.next(), false);
+		this.initialOps = SelectionKey.OP_CONNECT;
 	}
 
 	public Connection(SocketChannel ch, NetEventListener listener) throws IOException
 	{
-		this.selector = initSelector();
+		this(ch, listener, EventLoopGroup.getDefault());
+	}
+
+	public Connection(SocketChannel ch, NetEventListener listener, EventLoopGroup group) throws IOException
+	{
 		this.channel = ch;
 		this.listener = listener;
 		ch.configureBlocking(false);
 
-		synchronized(changeRequests) {
-			changeRequests.add(new ChangeRequest(ch, ChangeRequest.REGISTER, SelectionKey.OP_WRITE));
-		}
+		this.context = newContext(group.next(), true);
+		this.initialOps = SelectionKey.OP_READ;
 	}
 
-	private Selector initSelector() throws IOException
+	private ChannelContext newContext(EventLoop loop, boolean connected)
 	{
-		return SelectorProvider.provider().openSelector();
+		return new ChannelContext(channel, loop, listener, connected) {
+			void closed() {
+				Connection.this.closed();
+			}
+
+			void finishConnection(SelectionKey key) throws IOException {
+				Connection.this.finishConnection(key);
+			}
+		};
 	}
 
-	private SocketChannel initiateConnection() throws IOException
+	/*
+	 * Hand the channel over to its event loop (And start connecting if
+	 * this is an outgoing connection).  Listener callbacks may fire as
+	 * soon as this returns.
+	*/
+	public void start() throws IOException
 	{
-		SocketChannel ch = SocketChannel.open();
-		ch.configureBlocking(false);
+		if (initialOps == SelectionKey.OP_CONNECT)
+			channel.connect(new InetSocketAddress(this.hostAddress, this.port));
 
-		ch.connect(new InetSocketAddress(this.hostAddress, this.port));
-		synchronized(this.changeRequests) {
-			changeRequests.add(new ChangeRequest(ch, ChangeRequest.REGISTER, SelectionKey.OP_CONNECT));
-		}
-		return ch;
+		context.loop.register(channel, context.connected ? context.interestOps() : initialOps, context);
 	}
 
 	public SocketChannel getChannel()
@@ -79,52 +88,14 @@ public class Connection implements Runnable
 		return channel;
 	}
 
+	public EventLoop getEventLoop()
+	{
+		return context.loop;
+	}
+
 	public boolean isConnected()
 	{
-		return connected;
-	}
-
-	public void run()
-	{
-		while (true) {
-			try {
-				synchronized(changeRequests) {
-					Iterator changes = changeRequests.iterator();
-					while (changes.hasNext()) {
-						ChangeRequest change = (ChangeRequest) changes.next();
-						switch (change.type) {
-						case ChangeRequest.CHANGEOPS:
-							SelectionKey key = change.socket.keyFor(selector);
-							key.interestOps(change.ops);
-							break;
-						case ChangeRequest.REGISTER:
-							change.socket.register(selector, change.ops);
-							break;
-						}
-					}
-					changeRequests.clear();
-				}
-				selector.select();
-
-				Iterator selectedKeys = selector.selectedKeys().iterator();
-				while (selectedKeys.hasNext()) {
-					SelectionKey  key = (SelectionKey)selectedKeys.next();
-					selectedKeys.remove();
-
-					if (!key.isValid())
-						continue;
-
-					if (key.isConnectable())
-						finishConnection(key);
-					else if (key.isReadable())
-						read(key);
-					else if (key.isWritable())
-						write(key);
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
+		return context.connected && !closed;
 	}
 
 	private void finishConnection(SelectionKey key) throws IOException
@@ -132,83 +103,62 @@ public class Connection implements Runnable
 		try {
 			channel.finishConnect();
 		} catch (IOException e) {
-			key.cancel();
+			// Goes through the listener like any other lost connection.
+			context.fail(key);
 			return;
 		}
 
-		key.interestOps(SelectionKey.OP_WRITE);
-		if (listener != null && !listener.handleConnection(channel))
-			disconnect();
-		else
-			connected = true;
+		context.connected = true;
+		key.interestOps(context.interestOps());
+		context.fireConnection();
 	}
 
-	private void read(SelectionKey key) throws IOException
+	public void send(byte[] data)
 	{
-		ByteBuffer buffer = ByteBuffer.allocate(1024);
-		int count;
-		try {
-			count = channel.read(buffer);
-		} catch (IOException e) {
-			disconnect();
-			return;
-		}
-
-		buffer.flip();
-		if (count == -1
-			|| (listener != null 
-				&& !listener.handleRead(channel, buffer, count)))
-			disconnect();
+		context.send(PooledBuffer.wrap(data));
 	}
 
-	private void write(SelectionKey key) throws IOException
+	// Takes ownership of @data, see PooledBuffer.
+	public void send(PooledBuffer data)
 	{
-		int count = 0;
-
-		synchronized(pendingData) {
-			while (!pendingData.isEmpty()) {
-				ByteBuffer buf = (ByteBuffer) pendingData.get(0);
-				channel.write(buf);
-
-				count += buf.capacity() - buf.remaining();
-				if (buf.remaining() > 0)
-					break;
-				pendingData.remove(0);
-			}
+		context.send(data);
+	}
 
-			if (pendingData.isEmpty())
-				key.interestOps(SelectionKey.OP_READ);
-		}
+	// @droppable: the slow consumer policy may drop it, see SlowConsumerPolicy.
+	public void send(PooledBuffer data, boolean droppable)
+	{
+		context.send(data, droppable);
+	}
 
-		if (listener != null && !listener.handleWrite(channel, count))
-			disconnect();
+	// Bytes queued and not written yet.
+	public long getQueuedBytes()
+	{
+		return context.getQueuedBytes();
 	}
 
-	public void send(byte[] data)
+	public boolean isWritable()
 	{
-		synchronized (changeRequests) {
-			changeRequests.add(new ChangeRequest(channel, ChangeRequest.CHANGEOPS, SelectionKey.OP_WRITE));
-			synchronized (pendingData) {
-				pendingData.add(ByteBuffer.wrap(data));
-			}
-		}
-		selector.wakeup();
+		return context.isWritable();
 	}
 
+	// Once the listener agrees (handleConnectionClose()), which may be later.
 	public void disconnect()
 	{
-		if (listener != null && !listener.handleConnectionClose(channel))
-			return;
+		context.close();
+	}
 
+	private void closed()
+	{
 		try {
 			channel.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 
-		channel.keyFor(selector).cancel();
-		synchronized(changeRequests) {
-			changeRequests.clear();
+		if (!closed) {
+			closed = true;
+			context.loop.deregister(channel);
+			context.release();
 		}
 	}
 }
@@ -0,0 +1,186 @@
+/*
+ * P2PChat - Peer-to-Peer Chat Application
+ *
+ * Copyright (c) 2014 Ahmed Samy  <f.fallen45@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package netlib;
+
+import java.lang.reflect.Method;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Decides which thread runs NetEventListener callbacks.
+ *
+ *	inline()		- On the event loop thread, as it always was.  Cheapest,
+ *				  but a slow handler stalls every channel of that loop.
+ *	fixedPool(n)		- On a pool of @n worker threads.
+ *	virtualThreads()	- On virtual threads where the JVM has them (21+),
+ *				  a cached pool otherwise.
+ *
+ * Whatever the mode, callbacks of one channel run one at a time and in
+ * the order the events happened (Each channel gets its own Serial queue
+ * that is drained by at most one worker at a time).
+ *
+ * Set on an EventLoopGroup, see EventLoopGroup.setDispatcher().
+*/
+public class Dispatcher
+{
+	// Callbacks a worker runs for one channel before letting others in.
+	private static final int MAX_BATCH = 64;
+
+	private static final Dispatcher INLINE = new Dispatcher(null);
+
+	private final Executor executor;
+
+	private final AtomicLong queueDepth = new AtomicLong();
+	private final AtomicLong dispatched = new AtomicLong();
+	private final LatencyHistogram handlerLatency = new LatencyHistogram();
+
+	private Dispatcher(Executor executor)
+	{
+		this.executor = executor;
+	}
+
+	public static Dispatcher inline()
+	{
+		return INLINE;
+	}
+
+	public static Dispatcher fixedPool(int nThreads)
+	{
+		return new Dispatcher(Executors.newFixedThreadPool(nThreads, threadFactory()));
+	}
+
+	public static Dispatcher virtualThreads()
+	{
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return new Dispatcher((Executor) m.invoke(null));
+		} catch (Exception e) {
+			return new Dispatcher(Executors.newCachedThreadPool(threadFactory()));
+		}
+	}
+
+	private static ThreadFactory threadFactory()
+	{
+		final AtomicInteger n = new AtomicInteger();
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "netlib-dispatch-" + n.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	public boolean isInline()
+	{
+		return executor == null;
+	}
+
+	// Callbacks waiting for a worker.
+	public long getQueueDepth()
+	{
+		return queueDepth.get();
+	}
+
+	public long getDispatched()
+	{
+		return dispatched.get();
+	}
+
+	// Time spent in listener callbacks, in nanoseconds.
+	public LatencyHistogram getHandlerLatency()
+	{
+		return handlerLatency;
+	}
+
+	void recordLatency(long startNanos)
+	{
+		dispatched.incrementAndGet();
+		handlerLatency.record(System.nanoTime() - startNanos);
+	}
+
+	Serial newSerial()
+	{
+		return isInline() ? null : new Serial();
+	}
+
+	public void shutdown()
+	{
+		if (executor instanceof ExecutorService)
+			((ExecutorService) executor).shutdown();
+	}
+
+	/*
+	 * Per-channel FIFO of callbacks.  Only one worker drains it at a time,
+	 * which is what keeps a channel's events in order.
+	*/
+	final class Serial implements Runnable
+	{
+		private final ConcurrentLinkedQueue tasks = new ConcurrentLinkedQueue();
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+
+		void execute(Runnable task)
+		{
+			queueDepth.incrementAndGet();
+			tasks.offer(task);
+			if (scheduled.compareAndSet(false, true))
+				executor.execute(this);
+		}
+
+		public void run()
+		{
+			for (int i = 0; i < MAX_BATCH; ++i) {
+				Runnable task = (Runnable) tasks.poll();
+				if (task == null)
+					break;
+
+				queueDepth.decrementAndGet();
+				long start = System.nanoTime();
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+				recordLatency(start);
+			}
+
+			if (!tasks.isEmpty()) {
+				// Give the other channels a go.
+				executor.execute(this);
+				return;
+			}
+
+			scheduled.set(false);
+			if (!tasks.isEmpty() && scheduled.compareAndSet(false, true))
+				executor.execute(this);
+		}
+	}
+}
@@ -0,0 +1,269 @@
+/*
+ * P2PChat - Peer-to-Peer Chat Application
+ *
+ * Copyright (c) 2014 Ahmed Samy  <f.fallen45@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package netlib;
+
+import java.io.IOException;
+
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.SelectorProvider;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * A single selector thread.  Channels are never registered directly,
+ * instead a ChangeRequest is queued and picked up by the loop thread
+ * before it selects again (Registering from another thread while the
+ * selector is blocked would deadlock).
+ *
+ * Each loop also runs a TimerWheel (100ms ticks) for schedule(), the
+ * selector's timeout is what drives it.
+ *
+ * See EventLoopGroup.
+*/
+public class EventLoop implements Runnable
+{
+	final EventLoopGroup group;
+
+	private final Selector selector;
+	private final Thread thread;
+
+	private final List changeRequests = new LinkedList();
+	private final List tasks = new LinkedList();
+
+	private final TimerWheel timers = new TimerWheel(100, 512);
+	private final List expired = new ArrayList();
+	private final AtomicInteger channelCount = new AtomicInteger();
+
+	private volatile boolean running = true;
+
+	// Set on every loop thread, whatever the group.
+	private static final ThreadLocal current = new ThreadLocal();
+
+	EventLoop(EventLoopGroup group, String name) throws IOException
+	{
+		this.group = group;
+		selector = SelectorProvider.provider().openSelector();
+		thread = new Thread(this, name);
+	}
+
+	void start()
+	{
+		thread.start();
+	}
+
+	void shutdown()
+	{
+		running = false;
+		selector.wakeup();
+	}
+
+	public boolean inEventLoop()
+	{
+		return Thread.currentThread() == thread;
+	}
+
+	// True on any event loop thread, those must never block.
+	static boolean inAnyEventLoop()
+	{
+		return current.get() != null;
+	}
+
+	public int getChannelCount()
+	{
+		return channelCount.get();
+	}
+
+	void register(SelectableChannel ch, int ops, SelectHandler handler)
+	{
+		channelCount.incrementAndGet();
+		synchronized(changeRequests) {
+			changeRequests.add(new ChangeRequest(ch, ChangeRequest.REGISTER, ops, handler));
+		}
+		selector.wakeup();
+	}
+
+	void changeOps(SelectableChannel ch, int ops)
+	{
+		synchronized(changeRequests) {
+			changeRequests.add(new ChangeRequest(ch, ChangeRequest.CHANGEOPS, ops));
+		}
+		selector.wakeup();
+	}
+
+	// Run @task on the loop thread.
+	public void execute(Runnable task)
+	{
+		synchronized(tasks) {
+			tasks.add(task);
+		}
+		selector.wakeup();
+	}
+
+	/*
+	 * Run @task on the loop thread once @delayMillis have passed, with
+	 * the wheel's tick (100ms) as resolution.  Safe from any thread.
+	*/
+	public Timeout schedule(Runnable task, long delayMillis)
+	{
+		final Timeout timeout = new Timeout(task, timers.now() + delayMillis);
+		if (inEventLoop())
+			timers.add(timeout);
+		else {
+			execute(new Runnable() {
+				public void run() {
+					timers.add(timeout);
+				}
+			});
+		}
+
+		return timeout;
+	}
+
+	private void runTimers()
+	{
+		timers.advance(expired);
+		for (int i = 0; i < expired.size(); ++i) {
+			Timeout timeout = (Timeout) expired.get(i);
+			try {
+				timeout.task.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+		expired.clear();
+	}
+
+	// Closing the channel cancels its key, this just keeps the count right.
+	void deregister(SelectableChannel ch)
+	{
+		channelCount.decrementAndGet();
+	}
+
+	private void runTasks()
+	{
+		Object[] pending;
+		synchronized(tasks) {
+			if (tasks.isEmpty())
+				return;
+
+			pending = tasks.toArray();
+			tasks.clear();
+		}
+
+		for (int i = 0; i < pending.length; ++i) {
+			try {
+				((Runnable) pending[i]).run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void processChangeRequests()
+	{
+		synchronized(changeRequests) {
+			Iterator changes = changeRequests.iterator();
+			while (changes.hasNext()) {
+				ChangeRequest change = (ChangeRequest) changes.next();
+
+				// The channel may be closed under us by another thread.
+				try {
+					switch (change.type) {
+					case ChangeRequest.CHANGEOPS:
+						SelectionKey key = change.socket.keyFor(selector);
+						if (key != null && key.isValid())
+							key.interestOps(change.ops);
+						break;
+					case ChangeRequest.REGISTER:
+						if (change.socket.isOpen())
+							change.socket.register(selector, change.ops, change.attachment);
+						break;
+					}
+				} catch (CancelledKeyException e) {
+					;
+				} catch (IOException | RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+			changeRequests.clear();
+		}
+	}
+
+	public void run()
+	{
+		current.set(this);
+		while (running) {
+			try {
+				runTasks();
+				runTimers();
+				processChangeRequests();
+
+				long delay = timers.delayToNextTick();
+				if (delay < 0)
+					selector.select();
+				else if (delay == 0)
+					selector.selectNow();
+				else
+					selector.select(delay);
+
+				Iterator selectedKeys = selector.selectedKeys().iterator();
+				while (selectedKeys.hasNext()) {
+					SelectionKey key = (SelectionKey) selectedKeys.next();
+					selectedKeys.remove();
+
+					if (!key.isValid())
+						continue;
+
+					// One misbehaving channel must not take the others down.
+					try {
+						((SelectHandler) key.attachment()).handleSelect(key);
+					} catch (IOException e) {
+						e.printStackTrace();
+						key.cancel();
+					} catch (CancelledKeyException e) {
+						;
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		try {
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * P2PChat - Peer-to-Peer Chat Application
+ *
+ * Copyright (c) 2014 Ahmed Samy  <f.fallen45@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package netlib;
+
+import java.io.IOException;
+
+/*
+ * A fixed set of EventLoops (One per core by default) shared by every
+ * Server and Connection that uses the group, so the number of selector
+ * threads stays the same no matter how many peers we are linked with.
+ *
+ * New channels go to the loop with the fewest channels, ties are broken
+ * round-robin.
+*/
+public class EventLoopGroup
+{
+	private static EventLoopGroup defaultGroup;
+
+	private final EventLoop[] loops;
+	private int nextIndex = 0;
+
+	private final NetStats stats = new NetStats();
+	private volatile Dispatcher dispatcher = Dispatcher.inline();
+
+	// Upper bounds for a single gathering write, see ChannelContext.write()
+	private volatile int maxWriteBuffers = 64;
+	private volatile int maxWriteBytes = 256 * 1024;
+
+	// Per-channel outbound queue bounds, see ChannelContext.send()
+	private volatile long lowWatermark = 256 * 1024;
+	private volatile long highWatermark = 1024 * 1024;
+	private volatile SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.dropOldest();
+
+	public EventLoopGroup() throws IOException
+	{
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public EventLoopGroup(int nThreads) throws IOException
+	{
+		if (nThreads <= 0)
+			throw new IllegalArgumentException("nThreads must be positive");
+
+		loops = new EventLoop[nThreads];
+		for (int i = 0; i < nThreads; ++i)
+			loops[i] = new EventLoop(this, "netlib-loop-" + i);
+		for (int i = 0; i < nThreads; ++i)
+			loops[i].start();
+	}
+
+	public static synchronized EventLoopGroup getDefault() throws IOException
+	{
+		if (defaultGroup == null)
+			defaultGroup = new EventLoopGroup();
+
+		return defaultGroup;
+	}
+
+	public int size()
+	{
+		return loops.length;
+	}
+
+	public NetStats getStats()
+	{
+		return stats;
+	}
+
+	public Dispatcher getDispatcher()
+	{
+		return dispatcher;
+	}
+
+	// Only affects channels registered after the call.
+	public void setDispatcher(Dispatcher dispatcher)
+	{
+		this.dispatcher = dispatcher;
+	}
+
+	public int getMaxWriteBuffers()
+	{
+		return maxWriteBuffers;
+	}
+
+	public int getMaxWriteBytes()
+	{
+		return maxWriteBytes;
+	}
+
+	public void setMaxWriteBatch(int buffers, int bytes)
+	{
+		if (buffers <= 0 || bytes <= 0)
+			throw new IllegalArgumentException("write batch limits must be positive");
+
+		maxWriteBuffers = buffers;
+		maxWriteBytes = bytes;
+	}
+
+	public long getLowWatermark()
+	{
+		return lowWatermark;
+	}
+
+	public long getHighWatermark()
+	{
+		return highWatermark;
+	}
+
+	/*
+	 * A channel with more than @high bytes queued becomes unwritable
+	 * (NetEventListener.handleWritabilityChanged()) and sends go through
+	 * the slow consumer policy, it is writable again once the queue
+	 * drains down to @low.
+	*/
+	public void setWriteWatermarks(long low, long high)
+	{
+		if (low < 0 || high <= low)
+			throw new IllegalArgumentException("need 0 <= low < high");
+
+		lowWatermark = low;
+		highWatermark = high;
+	}
+
+	public SlowConsumerPolicy getSlowConsumerPolicy()
+	{
+		return slowConsumerPolicy;
+	}
+
+	public void setSlowConsumerPolicy(SlowConsumerPolicy policy)
+	{
+		if (policy == null)
+			throw new IllegalArgumentException("policy must not be null");
+
+		slowConsumerPolicy = policy;
+	}
+
+	public synchronized EventLoop next()
+	{
+		EventLoop best = null;
+		for (int i = 0; i < loops.length; ++i) {
+			EventLoop loop = loops[(nextIndex + i) % loops.length];
+			if (best == null || loop.getChannelCount() < best.getChannelCount())
+				best = loop;
+		}
+
+		nextIndex = (nextIndex + 1) % loops.length;
+		return best;
+	}
+
+	public void shutdown()
+	{
+		for (int i = 0; i < loops.length; ++i)
+			loops[i].shutdown();
+	}
+}
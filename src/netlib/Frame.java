@@ -0,0 +1,71 @@
+/*
+ * P2PChat - Peer-to-Peer Chat Application
+ *
+ * Copyright (c) 2014 Ahmed Samy  <f.fallen45@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package netlib;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Every message exchanged over netlib is a frame:
+ *		Integer - payload length (not counting the header)
+ *		byte    - opcode
+ *		byte[]  - payload
+ *
+ * Listeners are only ever handed complete frames, see FrameDecoder.
+*/
+public final class Frame
+{
+	public static final int HEADER_SIZE = 5;
+	public static final int MAX_PAYLOAD = 1 << 20;
+
+	private Frame()
+	{
+	}
+
+	/*
+	 * Allocate a buffer big enough to hold a frame with @payloadLength
+	 * bytes of payload, the header is already written so the caller just
+	 * has to put the payload in.
+	*/
+	public static ByteBuffer allocate(int opcode, int payloadLength)
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payloadLength);
+		buffer.putInt(payloadLength);
+		buffer.put((byte) opcode);
+
+		return buffer;
+	}
+
+	/*
+	 * Same as allocate() but the frame comes from the default BufferPool,
+	 * flip() it once the payload is in and hand it to send().
+	*/
+	public static PooledBuffer acquire(int opcode, int payloadLength)
+	{
+		PooledBuffer buffer = BufferPool.getDefault().acquire(HEADER_SIZE + payloadLength);
+		buffer.buffer().putInt(payloadLength);
+		buffer.buffer().put((byte) opcode);
+
+		return buffer;
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * P2PChat - Peer-to-Peer Chat Application
+ *
+ * Copyright (c) 2014 Ahmed Samy  <f.fallen45@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package netlib;
+
+import java.io.IOException;
+
+import java.net.ProtocolException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/*
+ * Accumulates whatever the socket hands us and splits it into
+ * complete frames (See Frame.java for the layout).  One decoder
+ * is kept per channel and its (pooled, direct) buffer is reused across
+ * reads, it only grows when a single frame does not fit in it.
+ *
+ * Frames returned by next() share the decoder's buffer, so they are
+ * only valid until the next call to read().  release() must be called
+ * once the channel is gone.
+*/
+public class FrameDecoder
+{
+	private static final int INITIAL_CAPACITY = 4096;
+
+	private PooledBuffer pooled;
+	private ByteBuffer buffer;
+	private int readPos = 0;
+
+	public int read(ReadableByteChannel ch) throws IOException
+	{
+		if (buffer == null)
+			setBuffer(BufferPool.getDefault().acquire(INITIAL_CAPACITY));
+		else if (!buffer.hasRemaining())
+			grow();
+
+		return ch.read(buffer);
+	}
+
+	public ByteBuffer next() throws ProtocolException
+	{
+		if (buffer == null)
+			return null;
+
+		int available = buffer.position() - readPos;
+		if (available < Frame.HEADER_SIZE) {
+			compact();
+			return null;
+		}
+
+		int length = buffer.getInt(readPos);
+		if (length < 0 || length > Frame.MAX_PAYLOAD)
+			throw new ProtocolException("Invalid frame length " + length);
+
+		int total = Frame.HEADER_SIZE + length;
+		if (available < total) {
+			compact();
+			return null;
+		}
+
+		// Skip the length, the listener starts reading at the opcode.
+		ByteBuffer frame = buffer.duplicate();
+		frame.limit(readPos + total);
+		frame.position(readPos + 4);
+		readPos += total;
+
+		return frame.slice();
+	}
+
+	private void compact()
+	{
+		if (readPos == 0)
+			return;
+
+		buffer.limit(buffer.position());
+		buffer.position(readPos);
+		buffer.compact();
+		readPos = 0;
+
+		// Give back the memory a large frame made us take.
+		if (buffer.position() == 0 && buffer.capacity() > INITIAL_CAPACITY) {
+			pooled.release();
+			setBuffer(BufferPool.getDefault().acquire(INITIAL_CAPACITY));
+		}
+	}
+
+	private void grow()
+	{
+		int needed = buffer.capacity() * 2;
+		if (buffer.position() >= Frame.HEADER_SIZE)
+			needed = Math.max(needed, Frame.HEADER_SIZE + buffer.getInt(0));
+
+		PooledBuffer old = pooled;
+		ByteBuffer data = buffer;
+
+		setBuffer(BufferPool.getDefault().acquire(needed));
+		data.flip();
+		buffer.put(data);
+		old.release();
+	}
+
+	private void setBuffer(PooledBuffer pb)
+	{
+		pooled = pb;
+		buffer = pb.buffer();
+		buffer.limit(buffer.capacity());
+	}
+
+	public void release()
+	{
+		if (pooled != null) {
+			pooled.release();
+			pooled = null;
+			buffer = null;
+			readPos = 0;
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * P2PChat - Peer-to-Peer Chat Application
+ *
+ * Copyright (c) 2014 Ahmed Samy  <f.fallen45@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package netlib;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Log-linear latency histogram in the spirit of HdrHistogram: values
+ * below 32 get a bucket each, above that every power of two is split in
+ * 16 buckets, so any recorded value is off by at most ~6% while the whole
+ * range of a long fits in under a thousand counters.
+ *
+ * Values are whatever unit the caller uses (We record nanoseconds).
+ * record() is lock-free and safe from any thread; percentiles read
+ * while others record are approximate but never torn.
+*/
+public class LatencyHistogram
+{
+	private static final int SUB_BITS = 5;
+	private static final int SUB = 1 << SUB_BITS;
+	private static final int HALF = SUB >> 1;
+	private static final int NR_BUCKETS = SUB + (64 - SUB_BITS) * HALF;
+
+	private final AtomicLongArray counts = new AtomicLongArray(NR_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	private static int bucketOf(long value)
+	{
+		if (value < SUB)
+			return (int) value;
+
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BITS - 1);
+		int sub = (int) (value >>> shift);
+		return SUB + (shift - 1) * HALF + (sub - HALF);
+	}
+
+	// Highest value that falls in @bucket.
+	private static long valueOf(int bucket)
+	{
+		if (bucket < SUB)
+			return bucket;
+
+		int k = bucket - SUB;
+		int shift = k / HALF + 1;
+		long sub = k % HALF + HALF;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	public void record(long value)
+	{
+		if (value < 0)
+			value = 0;
+
+		counts.incrementAndGet(bucketOf(value));
+		count.incrementAndGet();
+
+		long m;
+		while (value > (m = max.get()) && !max.compareAndSet(m, value))
+			;
+	}
+
+	public long getCount()
+	{
+		return count.get();
+	}
+
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	// @percentile is in [0, 100], returns 0 when nothing was recorded.
+	public long getValueAtPercentile(double percentile)
+	{
+		long total = count.get();
+		if (total == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(percentile / 100.0 * total);
+		if (rank < 1)
+			rank = 1;
+
+		long seen = 0;
+		for (int i = 0; i < NR_BUCKETS; ++i) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(valueOf(i), getMax());
+		}
+
+		return getMax();
+	}
+
+	public void reset()
+	{
+		for (int i = 0; i < NR_BUCKETS; ++i)
+			counts.set(i, 0);
+		count.set(0);
+		max.set(0);
+	}
+}
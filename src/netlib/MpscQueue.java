@@ -0,0 +1,90 @@
+/*
+ * P2PChat - Peer-to-Peer Chat Application
+ *
+ * Copyright (c) 2014 Ahmed Samy  <f.fallen45@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package netlib;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Unbounded lock-free multi-producer/single-consumer queue.
+ * Any thread may offer(), only the channel's event loop thread
+ * may peek()/poll()/isEmpty().
+ *
+ * Producers swap themselves in as the tail and then link the previous
+ * tail to them, so there is a short window where an offered element is
+ * not visible to the consumer yet; callers that care about that (See
+ * ChannelContext.send) publish a flag after offer() returns.
+*/
+final class MpscQueue
+{
+	private static final class Node
+	{
+		Object value;
+		volatile Node next;
+
+		Node(Object value)
+		{
+			this.value = value;
+		}
+	}
+
+	private final AtomicReference tail;
+	private Node head;
+
+	MpscQueue()
+	{
+		Node stub = new Node(null);
+		head = stub;
+		tail = new AtomicReference(stub);
+	}
+
+	void offer(Object value)
+	{
+		Node node = new Node(value);
+		Node prev = (Node) tail.getAndSet(node);
+		prev.next = node;
+	}
+
+	Object peek()
+	{
+		Node next = head.next;
+		return next == null ? null : next.value;
+	}
+
+	Object poll()
+	{
+		Node next = head.next;
+		if (next == null)
+			return null;
+
+		Object value = next.value;
+		next.value = null;
+		head = next;
+		return value;
+	}
+
+	boolean isEmpty()
+	{
+		return head.next == null;
+	}
+}
@@ -32,4 +32,11 @@ public interface NetEventListener
 	public boolean handleRead(SocketChannel ch, ByteBuffer buffer, int count);
 	public boolean handleConnection(SocketChannel ch);
 	public boolean handleConnectionClose(SocketChannel ch);
+
+	/*
+	 * @ch went over its high watermark (@writable false) or drained back
+	 * down to its low watermark (@writable true), see
+	 * EventLoopGroup.setWriteWatermarks().
+	*/
+	public void handleWritabilityChanged(SocketChannel ch, boolean writable);
 }
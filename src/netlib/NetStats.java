@@ -0,0 +1,104 @@
+/*
+ * P2PChat - Peer-to-Peer Chat Application
+ *
+ * Copyright (c) 2014 Ahmed Samy  <f.fallen45@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package netlib;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Counters shared by every channel of an EventLoopGroup.
+ * All methods are safe to call from any thread.
+*/
+public class NetStats
+{
+	private final AtomicLong writeCalls = new AtomicLong();
+	private final AtomicLong buffersWritten = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong framesDropped = new AtomicLong();
+	private final AtomicLong bytesDropped = new AtomicLong();
+	private final AtomicLong slowConsumers = new AtomicLong();
+
+	void recordWrite(int buffers, long bytes)
+	{
+		writeCalls.incrementAndGet();
+		buffersWritten.addAndGet(buffers);
+		bytesWritten.addAndGet(bytes);
+	}
+
+	void recordDrop(long bytes)
+	{
+		framesDropped.incrementAndGet();
+		bytesDropped.addAndGet(bytes);
+	}
+
+	void recordSlowConsumer()
+	{
+		slowConsumers.incrementAndGet();
+	}
+
+	public long getWriteCalls()
+	{
+		return writeCalls.get();
+	}
+
+	public long getBuffersWritten()
+	{
+		return buffersWritten.get();
+	}
+
+	public long getBytesWritten()
+	{
+		return bytesWritten.get();
+	}
+
+	// Frames thrown away by the slow consumer policy.
+	public long getFramesDropped()
+	{
+		return framesDropped.get();
+	}
+
+	public long getBytesDropped()
+	{
+		return bytesDropped.get();
+	}
+
+	// Channels closed by the slow consumer policy.
+	public long getSlowConsumers()
+	{
+		return slowConsumers.get();
+	}
+
+	// Average number of queued buffers flushed by one write syscall.
+	public double getBuffersPerWrite()
+	{
+		long calls = writeCalls.get();
+		return calls == 0 ? 0.0 : (double) buffersWritten.get() / calls;
+	}
+
+	public String toString()
+	{
+		return String.format("writes=%d buffers=%d bytes=%d buffers/write=%.2f dropped=%d/%dB slow=%d",
+			getWriteCalls(), getBuffersWritten(), getBytesWritten(), getBuffersPerWrite(),
+			getFramesDropped(), getBytesDropped(), getSlowConsumers());
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * P2PChat - Peer-to-Peer Chat Application
+ *
+ * Copyright (c) 2014 Ahmed Samy  <f.fallen45@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package netlib;
+
+import java.nio.ByteBuffer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * A reference counted buffer, usually from a BufferPool.
+ *
+ * Whoever acquires a buffer owns one reference and must either release()
+ * it or hand it over: Server.send() and Connection.send() take ownership
+ * of the reference they are given and release it once it has been written.
+ * To send the same bytes more than once use retainedDuplicate(), which
+ * shares the memory (And the reference count) but has its own position,
+ * or Server.broadcast().
+*/
+public class PooledBuffer
+{
+	private final ByteBuffer buffer;
+	private final PooledBuffer root;
+
+	private final BufferPool pool;
+	private final int sizeClass;
+	private final AtomicInteger refCnt;
+
+	// Set by the send methods, the slow consumer policy may drop it.
+	boolean droppable;
+
+	PooledBuffer(ByteBuffer buffer, BufferPool pool, int sizeClass)
+	{
+		this.buffer = buffer;
+		this.root = this;
+		this.pool = pool;
+		this.sizeClass = sizeClass;
+		this.refCnt = new AtomicInteger(1);
+	}
+
+	private PooledBuffer(ByteBuffer view, PooledBuffer root)
+	{
+		this.buffer = view;
+		this.root = root;
+		this.pool = null;
+		this.sizeClass = -1;
+		this.refCnt = null;
+	}
+
+	// Not pooled, for callers that already have a byte array.
+	public static PooledBuffer wrap(byte[] data)
+	{
+		return new PooledBuffer(ByteBuffer.wrap(data), null, -1);
+	}
+
+	public ByteBuffer buffer()
+	{
+		return buffer;
+	}
+
+	public int refCount()
+	{
+		return root.refCnt.get();
+	}
+
+	public PooledBuffer retain()
+	{
+		root.refCnt.incrementAndGet();
+		return this;
+	}
+
+	public PooledBuffer retain(int count)
+	{
+		root.refCnt.addAndGet(count);
+		return this;
+	}
+
+	// A read-only view sharing this buffer's memory, it owns a new reference.
+	public PooledBuffer retainedDuplicate()
+	{
+		root.refCnt.incrementAndGet();
+		return view();
+	}
+
+	// Same as retainedDuplicate() for callers that already did retain(n).
+	PooledBuffer view()
+	{
+		return new PooledBuffer(buffer.asReadOnlyBuffer(), root);
+	}
+
+	public void release()
+	{
+		root.deref();
+	}
+
+	private void deref()
+	{
+		int n = refCnt.decrementAndGet();
+		if (n < 0)
+			throw new IllegalStateException("buffer released too many times");
+
+		if (n == 0 && pool != null) {
+			pool.released();
+			pool.recycle(sizeClass, buffer);
+		}
+	}
+}
@@ -11,38 +11,39 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 
-import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.channels.spi.SelectorProvider;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class Server implements Runnable
+public class Server
 {
 	private InetAddress hostAddress;
 	private int port;
 
-	private Selector selector;
+	private final EventLoopGroup group;
+	private final EventLoop acceptLoop;
 	private ServerSocketChannel channel;
 	private NetEventListener listener;
 
-	private final List changeRequests = new LinkedList();
-	private final Map pendingData = new HashMap();
+	private final Map channels = new ConcurrentHashMap();
 
 	public Server(InetAddress hostAddress, int port, NetEventListener listener) throws IOException
+	{
+		this(hostAddress, port, listener, EventLoopGroup.getDefault());
+	}
+
+	public Server(InetAddress hostAddress, int port, NetEventListener listener, EventLoopGroup group) throws IOException
 	{
 		this.hostAddress = hostAddress;
 		this.port = port;
-		this.selector = this.initSelector();
 		this.listener = listener;
+		this.group = group;
+		this.acceptLoop = group.next();
+		this.initChannel();
 	}
 
 	public InetAddress getAddress()
@@ -50,169 +51,147 @@ public class Server implements Runnable
 		return hostAddress;
 	}
 
-	private Selector initSelector() throws IOException
+	private void initChannel() throws IOException
 	{
-		Selector s = SelectorProvider.provider().openSelector();
-
 		channel = ServerSocketChannel.open();
 		channel.configureBlocking(false);
 		channel.socket().bind(new InetSocketAddress(this.hostAddress, this.port));
-		channel.register(s, SelectionKey.OP_ACCEPT);
+		acceptLoop.register(channel, SelectionKey.OP_ACCEPT, new SelectHandler() {
+			public void handleSelect(SelectionKey key) throws IOException {
+				if (!key.isAcceptable())
+					return;
+
+				// Out of file descriptors and such, keep listening.
+				try {
+					accept(key);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
 
 		if (hostAddress == null)
 			hostAddress = channel.socket().getInetAddress();
-
-		return s;
 	}
 
-	public boolean hasChannel(SocketChannel ch)
+	// The loop @ch is registered with, null if it's not ours.
+	public EventLoop getEventLoop(SocketChannel ch)
 	{
-		return ch != null && ch.keyFor(selector) != null;
+		ChannelContext ctx = (ChannelContext) channels.get(ch);
+		return ctx != null ? ctx.loop : null;
 	}
 
-	public void run()
+	public boolean hasChannel(SocketChannel ch)
 	{
-		while (true) {
-			try {
-				synchronized(changeRequests) {
-					Iterator changes = changeRequests.iterator();
-					while (changes.hasNext()) {
-						ChangeRequest change = (ChangeRequest) changes.next();
-						switch (change.type) {
-						case ChangeRequest.CHANGEOPS:
-							SelectionKey key = change.socket.keyFor(selector);
-							key.interestOps(change.ops);
-						}
-					}
-					changeRequests.clear();
-				}
-				selector.select();
-
-				Iterator selectedKeys = selector.selectedKeys().iterator();
-				while (selectedKeys.hasNext()) {
-					SelectionKey  key = (SelectionKey)selectedKeys.next();
-					selectedKeys.remove();
-
-					if (!key.isValid())
-						continue;
-
-					if (key.isAcceptable())
-						accept(key);
-					else if (key.isReadable())
-						read(key);
-					else if (key.isWritable())
-						write(key);
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
+		return ch != null && channels.containsKey(ch);
 	}
 
 	public void accept(SelectionKey key) throws IOException
 	{
 		ServerSocketChannel ch = (ServerSocketChannel) key.channel();
-		SocketChannel s_ch = ch.accept();
+		final SocketChannel s_ch = ch.accept();
+		if (s_ch == null)
+			return;
 
-		s_ch.configureBlocking(false);
-		s_ch.register(selector, SelectionKey.OP_READ);
-		if (!listener.handleConnection(s_ch)) {
+		try {
+			s_ch.configureBlocking(false);
+		} catch (IOException e) {
 			s_ch.close();
-			key.cancel();
+			throw e;
 		}
+
+		EventLoop loop = group.next();
+		ChannelContext ctx = new ChannelContext(s_ch, loop, listener, true) {
+			void closed() {
+				Server.this.closed(s_ch);
+			}
+		};
+
+		channels.put(s_ch, ctx);
+		loop.register(s_ch, SelectionKey.OP_READ, ctx);
+		ctx.fireConnection();
 	}
 
-	private void read(SelectionKey key) throws IOException
+	public void send(SocketChannel ch, byte[] data)
 	{
-		SocketChannel ch = (SocketChannel) key.channel();
-
-		ByteBuffer buffer = ByteBuffer.allocate(1024);
-		int count;
-		try {
-			count = ch.read(buffer);
-		} catch (IOException e) {
-			close(ch);
-			return;
-		}
+		send(ch, PooledBuffer.wrap(data));
+	}
 
-		buffer.flip();
-		if (count == -1
-			|| (listener != null && !listener.handleRead(ch, buffer, count)))
-			close(ch);
+	// Takes ownership of @data, see PooledBuffer.
+	public void send(SocketChannel ch, PooledBuffer data)
+	{
+		send(ch, data, false);
 	}
 
-	private void write(SelectionKey key) throws IOException
+	// @droppable: the slow consumer policy may drop it, see SlowConsumerPolicy.
+	public void send(SocketChannel ch, PooledBuffer data, boolean droppable)
 	{
-		SocketChannel ch = (SocketChannel) key.channel();
-		int count = 0;
+		ChannelContext ctx = (ChannelContext) channels.get(ch);
+		if (ctx != null)
+			ctx.send(data, droppable);
+		else
+			data.release();
+	}
 
-		synchronized(pendingData) {
-			List queue = (List) pendingData.get(ch);
-			/**
-			 * Null exception alert:
-			 *		This can happen once a connection was established.
-			 * Check send() for more information.
-			 */
-			if (queue == null)
-				return;
-
-			while (!queue.isEmpty()) {
-				ByteBuffer buf = (ByteBuffer) queue.get(0);
-				ch.write(buf);
-
-				count += buf.capacity() - buf.remaining();
-				if (buf.remaining() > 0)
-					break;
-				queue.remove(0);
-			}
+	/*
+	 * Queue the same frame on every channel in @chs, without copying it:
+	 * each channel gets a read-only view and the buffer goes back to its
+	 * pool after the last one has been written.  Takes ownership of @data.
+	*/
+	public void broadcast(Collection chs, PooledBuffer data)
+	{
+		broadcast(chs, data, false);
+	}
 
-			if (queue.isEmpty())
-				key.interestOps(SelectionKey.OP_READ);
+	public void broadcast(Collection chs, PooledBuffer data, boolean droppable)
+	{
+		Object[] targets = chs.toArray();
+		int count = 0;
+		for (int i = 0; i < targets.length; ++i) {
+			ChannelContext ctx = (ChannelContext) channels.get(targets[i]);
+			if (ctx != null)
+				targets[count++] = ctx;
 		}
 
-		if (!listener.handleWrite(ch, count))
-			close(ch);
+		data.retain(count);
+		for (int i = 0; i < count; ++i)
+			((ChannelContext) targets[i]).send(data.view(), droppable);
+		data.release();
 	}
 
-	public void send(SocketChannel ch, byte[] data)
+	// Bytes queued on @ch and not written yet, 0 for an unknown channel.
+	public long getQueuedBytes(SocketChannel ch)
 	{
-		synchronized(changeRequests) {
-			changeRequests.add(new ChangeRequest(ch, ChangeRequest.CHANGEOPS, SelectionKey.OP_WRITE));
-			synchronized(pendingData) {
-				List queue = (List) pendingData.get(ch);
-				if (queue == null) {
-					queue = new ArrayList();
-					pendingData.put(ch, queue);
-				}
-
-				queue.add(ByteBuffer.wrap(data));
-			}
-		}
+		ChannelContext ctx = (ChannelContext) channels.get(ch);
+		return ctx != null ? ctx.getQueuedBytes() : 0;
+	}
 
-		selector.wakeup();
+	public boolean isWritable(SocketChannel ch)
+	{
+		ChannelContext ctx = (ChannelContext) channels.get(ch);
+		return ctx != null && ctx.isWritable();
 	}
 
+	// Once the listener agrees (handleConnectionClose()), which may be later.
 	public void close(SocketChannel ch)
 	{
-		if (!listener.handleConnectionClose(ch))
-			return;
+		ChannelContext ctx = (ChannelContext) channels.get(ch);
+		if (ctx != null)
+			ctx.close();
+	}
 
+	private void closed(SocketChannel ch)
+	{
 		try {
 			ch.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 
-		ch.keyFor(selector).cancel();
-		synchronized(changeRequests) {
-			Iterator changes = changeRequests.iterator();
-			while (changes.hasNext()) {
-				ChangeRequest req = (ChangeRequest) changes.next();
-				if (req.socket == ch) {
-					changeRequests.remove(req);
-					break;
-				}
-			}
+		ChannelContext ctx = (ChannelContext) channels.remove(ch);
+		if (ctx != null) {
+			ctx.loop.deregister(ch);
+			ctx.release();
 		}
 	}
 }
@@ -0,0 +1,108 @@
+/*
+ * P2PChat - Peer-to-Peer Chat Application
+ *
+ * Copyright (c) 2014 Ahmed Samy  <f.fallen45@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package netlib;
+
+import java.nio.channels.SocketChannel;
+
+/*
+ * Decides what happens to a send while the channel is over its high
+ * watermark (The peer does not read as fast as we write).
+ *
+ * onOverflow() is called from whichever thread is sending, it should
+ * only look at its arguments and return one of the actions below:
+ *
+ *	ACCEPT		queue the frame anyway.
+ *	REJECT		drop the frame being sent.
+ *	DROP_OLDEST	queue it, then drop the oldest droppable frames
+ *			(See Server.send(ch, data, droppable)) until the
+ *			channel is back under its low watermark.
+ *	DISCONNECT	drop the frame and close the channel.
+ *	BLOCK		wait for the channel to drain below its low watermark,
+ *			for at most getBlockTimeout() milliseconds, then
+ *			disconnect.  Never blocks an event loop thread, the
+ *			frame is queued instead.
+ *
+ * See EventLoopGroup.setSlowConsumerPolicy().
+*/
+public abstract class SlowConsumerPolicy
+{
+	public static final int ACCEPT      = 0;
+	public static final int REJECT      = 1;
+	public static final int DROP_OLDEST = 2;
+	public static final int DISCONNECT  = 3;
+	public static final int BLOCK       = 4;
+
+	public abstract int onOverflow(SocketChannel ch, long queuedBytes, long highWatermark, boolean droppable);
+
+	public long getBlockTimeout()
+	{
+		return 0;
+	}
+
+	/*
+	 * Drop droppable frames (Voice), oldest first.  Anything else is
+	 * queued until the channel holds @hardLimit bytes, then the peer is
+	 * disconnected.  Never holds the sender back, so it is safe from the
+	 * EDT and from handlers.  The group's default, with a 64MB limit.
+	*/
+	public static SlowConsumerPolicy dropOldest(final long hardLimit)
+	{
+		return new SlowConsumerPolicy() {
+			public int onOverflow(SocketChannel ch, long queuedBytes, long highWatermark, boolean droppable) {
+				if (droppable)
+					return DROP_OLDEST;
+				return queuedBytes >= hardLimit ? DISCONNECT : ACCEPT;
+			}
+		};
+	}
+
+	public static SlowConsumerPolicy dropOldest()
+	{
+		return dropOldest(64 * 1024 * 1024);
+	}
+
+	public static SlowConsumerPolicy disconnect()
+	{
+		return new SlowConsumerPolicy() {
+			public int onOverflow(SocketChannel ch, long queuedBytes, long highWatermark, boolean droppable) {
+				return DISCONNECT;
+			}
+		};
+	}
+
+	// Holds senders back, only for groups whose senders are all
+	// threads that may wait (Not the EDT, nor a dispatcher worker).
+	public static SlowConsumerPolicy block(final long timeoutMillis)
+	{
+		return new SlowConsumerPolicy() {
+			public int onOverflow(SocketChannel ch, long queuedBytes, long highWatermark, boolean droppable) {
+				return BLOCK;
+			}
+
+			public long getBlockTimeout() {
+				return timeoutMillis;
+			}
+		};
+	}
+}
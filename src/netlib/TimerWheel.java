@@ -0,0 +1,117 @@
+/*
+ * P2PChat - Peer-to-Peer Chat Application
+ *
+ * Copyright (c) 2014 Ahmed Samy  <f.fallen45@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package netlib;
+
+import java.util.List;
+
+/*
+ * Hashed timer wheel, this is what lets one EventLoop drive timers for
+ * thousands of channels without a thread (Or a heap entry) per timer.
+ * Time is cut in ticks and each tick maps to a slot of the wheel;
+ * timeouts further away than one revolution wait for their slot to come
+ * around `rounds' more times.  Adding is O(1), expiring is O(timeouts in
+ * the slot).  Cancelled timeouts are dropped when their slot comes up.
+ *
+ * Not thread safe, only the owning EventLoop touches it.
+*/
+final class TimerWheel
+{
+	private final long tickMillis;
+	private final Timeout[] slots;
+	private final long origin = System.nanoTime();
+
+	private long lastTick = 0;
+	private int size = 0;
+
+	TimerWheel(long tickMillis, int nslots)
+	{
+		this.tickMillis = tickMillis;
+		this.slots = new Timeout[nslots];
+	}
+
+	long now()
+	{
+		return (System.nanoTime() - origin) / 1000000L;
+	}
+
+	int size()
+	{
+		return size;
+	}
+
+	void add(Timeout timeout)
+	{
+		long tick = Math.max((timeout.deadline + tickMillis - 1) / tickMillis, lastTick + 1);
+		int idx = (int) (tick % slots.length);
+
+		timeout.rounds = (tick - lastTick - 1) / slots.length;
+		timeout.next = slots[idx];
+		slots[idx] = timeout;
+		++size;
+	}
+
+	// Milliseconds until the next tick is due, -1 if nothing is scheduled.
+	long delayToNextTick()
+	{
+		if (size == 0)
+			return -1;
+
+		return Math.max(0, (lastTick + 1) * tickMillis - now());
+	}
+
+	// Move the wheel up to now, due timeouts are appended to @expired.
+	void advance(List expired)
+	{
+		long target = now() / tickMillis;
+		while (lastTick < target && size > 0) {
+			++lastTick;
+
+			int idx = (int) (lastTick % slots.length);
+			Timeout prev = null;
+			Timeout t = slots[idx];
+			while (t != null) {
+				Timeout next = t.next;
+				if (t.rounds > 0 && !t.isCancelled()) {
+					--t.rounds;
+					prev = t;
+				} else {
+					if (prev == null)
+						slots[idx] = next;
+					else
+						prev.next = next;
+
+					t.next = null;
+					--size;
+					if (!t.isCancelled())
+						expired.add(t);
+				}
+				t = next;
+			}
+		}
+
+		// Nothing left, skip the idle ticks.
+		if (size == 0)
+			lastTick = target;
+	}
+}
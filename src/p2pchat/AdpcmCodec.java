@@ -0,0 +1,168 @@
+/*
+ * P2PChat - Peer-to-Peer Chat Application
+ *
+ * Copyright (c) 2014 Ahmed Samy  <f.fallen45@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package p2pchat;
+
+import java.nio.ByteBuffer;
+
+/*
+ * IMA ADPCM: four bits per sample, coding the difference from a
+ * predicted sample with an adaptive step size.
+ *
+ * Every frame starts with the predictor (short) and step index (byte)
+ * it was encoded from, so it decodes without the frames before it;
+ * samples follow two to a byte, high nibble first.  The encoder carries
+ * its state over from frame to frame.
+*/
+public class AdpcmCodec implements VoiceCodec {
+	private static final int HEADER = 3;
+
+	private static final int[] indexTable = {
+		-1, -1, -1, -1, 2, 4, 6, 8,
+		-1, -1, -1, -1, 2, 4, 6, 8
+	};
+
+	private static final int[] stepTable = {
+		7, 8, 9, 10, 11, 12, 13, 14, 16, 17,
+		19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+		50, 55, 60, 66, 73, 80, 88, 97, 107, 118,
+		130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+		337, 371, 408, 449, 494, 544, 598, 658, 724, 796,
+		876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+		2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358,
+		5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899,
+		15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+	};
+
+	private int predictor;
+	private int index;
+
+	public int getId()
+	{
+		return VoiceCodecs.ADPCM;
+	}
+
+	public String getName()
+	{
+		return "IMA ADPCM";
+	}
+
+	public int maxEncodedSize(int pcmBytes)
+	{
+		return HEADER + (pcmBytes / 2 + 1) / 2;
+	}
+
+	public int encode(byte[] pcm, int len, ByteBuffer out)
+	{
+		int samples = len / 2;
+		out.putShort((short) predictor);
+		out.put((byte) index);
+
+		int packed = 0;
+		for (int i = 0, j = 0; i < samples; ++i, j += 2) {
+			int s = (short) ((pcm[j] << 8) | (pcm[j + 1] & 0xFF));
+			int step = stepTable[index];
+			int diff = s - predictor;
+			int code = 0;
+			if (diff < 0) {
+				code = 8;
+				diff = -diff;
+			}
+
+			// Quantize, and track the difference the decoder will rebuild.
+			int delta = step >> 3;
+			if (diff >= step) {
+				code |= 4;
+				diff -= step;
+				delta += step;
+			}
+			if (diff >= step >> 1) {
+				code |= 2;
+				diff -= step >> 1;
+				delta += step >> 1;
+			}
+			if (diff >= step >> 2) {
+				code |= 1;
+				delta += step >> 2;
+			}
+
+			predictor = clamp(predictor + ((code & 8) != 0 ? -delta : delta));
+			index = Math.max(0, Math.min(88, index + indexTable[code]));
+
+			if ((i & 1) == 0) {
+				packed = code << 4;
+			} else {
+				out.put((byte) (packed | code));
+			}
+		}
+		if ((samples & 1) != 0)
+			out.put((byte) packed);
+
+		return HEADER + (samples + 1) / 2;
+	}
+
+	public int decode(ByteBuffer in, int len, byte[] pcm)
+	{
+		int end = in.position() + len;
+		if (len < HEADER) {
+			in.position(end);
+			return 0;
+		}
+
+		int pred = in.getShort();
+		int idx = Math.max(0, Math.min(88, in.get() & 0xFF));
+		int samples = Math.min((len - HEADER) * 2, pcm.length / 2);
+		int b = 0;
+		for (int i = 0, j = 0; i < samples; ++i, j += 2) {
+			int code;
+			if ((i & 1) == 0) {
+				b = in.get() & 0xFF;
+				code = b >> 4;
+			} else {
+				code = b & 0x0F;
+			}
+
+			int step = stepTable[idx];
+			int delta = step >> 3;
+			if ((code & 4) != 0)
+				delta += step;
+			if ((code & 2) != 0)
+				delta += step >> 1;
+			if ((code & 1) != 0)
+				delta += step >> 2;
+
+			pred = clamp(pred + ((code & 8) != 0 ? -delta : delta));
+			idx = Math.max(0, Math.min(88, idx + indexTable[code]));
+
+			pcm[j] = (byte) (pred >> 8);
+			pcm[j + 1] = (byte) pred;
+		}
+		in.position(end);
+		return samples * 2;
+	}
+
+	private static int clamp(int s)
+	{
+		return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, s));
+	}
+}
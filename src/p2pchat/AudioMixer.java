@@ -0,0 +1,90 @@
+/*
+ * P2PChat - Peer-to-Peer Chat Application
+ *
+ * Copyright (c) 2014 Ahmed Samy  <f.fallen45@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package p2pchat;
+
+import java.util.Arrays;
+
+/*
+ * Sums frames of 16-bit big endian PCM from any number of speakers into
+ * one.  Samples add up in int accumulators and are clamped to the
+ * 16-bit range only once, when the mix is taken, so loud speakers clip
+ * instead of wrapping around.  Nothing is allocated past construction.
+ *
+ * One thread at a time: clear(), add() each frame, mix().
+*/
+public class AudioMixer {
+	private final int[] acc;
+	private int sources;	/* Frames added since clear() */
+	private volatile long clipped;	/* Samples clamped, all time */
+
+	public AudioMixer(int frameBytes)
+	{
+		acc = new int[frameBytes / 2];
+	}
+
+	public void clear()
+	{
+		Arrays.fill(acc, 0);
+		sources = 0;
+	}
+
+	public void add(byte[] frame)
+	{
+		int[] a = acc;
+		for (int i = 0, j = 0; i < a.length; ++i, j += 2)
+			a[i] += (short) ((frame[j] << 8) | (frame[j + 1] & 0xFF));
+		++sources;
+	}
+
+	// Number of frames added since clear().
+	public int getSources()
+	{
+		return sources;
+	}
+
+	public long getClipped()
+	{
+		return clipped;
+	}
+
+	// Write the saturated sum to @out.
+	public void mix(byte[] out)
+	{
+		int[] a = acc;
+		int clip = 0;
+		for (int i = 0, j = 0; i < a.length; ++i, j += 2) {
+			int s = a[i];
+			if (s > Short.MAX_VALUE) {
+				s = Short.MAX_VALUE;
+				++clip;
+			} else if (s < Short.MIN_VALUE) {
+				s = Short.MIN_VALUE;
+				++clip;
+			}
+			out[j] = (byte) (s >> 8);
+			out[j + 1] = (byte) s;
+		}
+		clipped += clip;
+	}
+}
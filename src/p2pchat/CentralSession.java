@@ -0,0 +1,488 @@
+/*
+ * P2PChat - Peer-to-Peer Chat Application
+ *
+ * Copyright (c) 2014 Ahmed Samy  <f.fallen45@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package p2pchat;
+
+import javax.swing.SwingUtilities;
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import netlib.Codec;
+import netlib.Connection;
+import netlib.EventLoopGroup;
+import netlib.Frame;
+import netlib.NetEventListener;
+import netlib.PeerInfo;
+import netlib.PooledBuffer;
+import netlib.Timeout;
+
+/*
+ * Our one connection to the central point (See HybridCentralPoint),
+ * kept open for as long as we run.  Announcing ourselves, the keepalive
+ * and peer discovery all go over it, nothing here blocks: the central
+ * point's name is looked up on a thread of our own, again on every
+ * reconnect.
+ *
+ * The central point answers our announcement with our address as it
+ * lists it (Behind NAT or on a multihomed host not one we could know),
+ * that is what we leave out of the peers we hand back.
+ *
+ * The first discovery fetches the whole list a page (0x1C) at a time,
+ * so no reply grows with the number of peers; the next ones only ask
+ * what changed since (0x1D).  Pages carry the version of the list they
+ * come from.  If it changes mid-fetch the pages may not line up, so we
+ * start over, up to MAX_FETCH_RESTARTS times; past that we keep what we
+ * got and catch up with a 0x1D from the first page's version.  That
+ * can still miss a peer that moved between pages, gossip among the
+ * peers makes up for it.
+ *
+ * Every reply brings our list up to date, so it answers every
+ * discovery waiting at the time.
+ *
+ * If the connection is lost we reconnect with an increasing delay,
+ * discoveries issued meanwhile fail right away.
+*/
+public class CentralSession implements NetEventListener
+{
+	public interface Callback
+	{
+		// @peers: PeerInfo of every peer but us, may be empty.
+		public void peersFound(List peers);
+		public void failed(IOException e);
+	}
+
+	// Re-announce (And so keep our entry alive) this often.
+	private static final long ANNOUNCE_INTERVAL = 2 * 60 * 1000;
+	private static final long MIN_RECONNECT_DELAY = 1000;
+	private static final long MAX_RECONNECT_DELAY = 60 * 1000;
+	private static final int PAGE_SIZE = 1024;	/* HybridCentralPoint.MAX_PAGE */
+	private static final int MAX_FETCH_RESTARTS = 3;
+
+	private final String host;
+	private final int port;
+	private final int localPort;
+	private final EventLoopGroup group;
+	private final ExecutorService resolver;
+
+	// All guarded by this.
+	private Connection connection;
+	private boolean resolving;
+	private boolean connected;
+	private boolean closed;
+	private Timeout timer;		/* announce or reconnect */
+	private long reconnectDelay = MIN_RECONNECT_DELAY;
+	private final List pending = new LinkedList();	/* of Callback */
+
+	private final Map known = new LinkedHashMap();	/* InetSocketAddress -> PeerInfo */
+	private long version = -1;	/* of known, -1 until we have the list */
+	private InetSocketAddress self;	/* How the central point sees us */
+
+	private Map fetched;	/* Pages so far, null unless fetching the list */
+	private int fetchOffset;
+	private long fetchVersion;	/* of the first page */
+	private int fetchRestarts;
+
+	public CentralSession(String host, int port, int localPort, EventLoopGroup group)
+	{
+		this.host = host;
+		this.port = port;
+		this.localPort = localPort;
+		this.group = group;
+		this.resolver = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "p2pchat-central");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	// Any thread, returns at once.
+	public synchronized void start()
+	{
+		if (closed || connection != null || resolving)
+			return;
+
+		resolving = true;
+		resolver.execute(new Runnable() {
+			public void run() {
+				connect();
+			}
+		});
+	}
+
+	private void connect()
+	{
+		InetAddress address;
+		try {
+			address = InetAddress.getByName(host);
+		} catch (UnknownHostException e) {
+			e.printStackTrace();
+			boolean notify;
+			synchronized(this) {
+				resolving = false;
+				notify = !closed && reconnectDelay == MIN_RECONNECT_DELAY;
+				scheduleReconnect();
+			}
+
+			if (notify)
+				notifyFailed();
+			return;
+		}
+
+		synchronized(this) {
+			resolving = false;
+			if (closed)
+				return;
+
+			try {
+				connection = new Connection(address, port, this, group);
+				connection.start();
+			} catch (IOException e) {
+				e.printStackTrace();
+				connection = null;
+				scheduleReconnect();
+			}
+		}
+	}
+
+	public synchronized void close()
+	{
+		closed = true;
+		resolver.shutdown();
+		if (timer != null)
+			timer.cancel();
+		if (connection != null)
+			connection.disconnect();
+	}
+
+	public synchronized boolean isConnected()
+	{
+		return connected;
+	}
+
+	public void discover(Callback callback)
+	{
+		synchronized(this) {
+			if (connected) {
+				pending.add(callback);
+				request();
+				return;
+			}
+		}
+
+		callback.failed(new IOException("not connected to the central point"));
+	}
+
+	// Everything, or what changed since the list we have.
+	private void request()
+	{
+		if (fetched != null)
+			return;	// Answered once the fetch is done
+
+		if (version < 0) {
+			fetched = new LinkedHashMap();
+			fetchOffset = 0;
+			fetchRestarts = 0;
+			requestPage();
+			return;
+		}
+
+		PooledBuffer frame = Frame.acquire(0x1D, 8);
+		frame.buffer().putLong(version);
+		frame.buffer().flip();
+		connection.send(frame);
+	}
+
+	private void requestPage()
+	{
+		PooledBuffer frame = Frame.acquire(0x1C,
+			Codec.varintSize(fetchOffset) + Codec.varintSize(PAGE_SIZE) + 1);
+		ByteBuffer out = frame.buffer();
+		Codec.putVarint(out, fetchOffset);
+		Codec.putVarint(out, PAGE_SIZE);
+		out.put((byte) 0);
+		out.flip();
+		connection.send(frame);
+	}
+
+	private void announce()
+	{
+		PooledBuffer frame = Frame.acquire(0x1B, 4);
+		frame.buffer().putInt(localPort);
+		frame.buffer().flip();
+		connection.send(frame);
+	}
+
+	private void scheduleAnnounce()
+	{
+		timer = group.next().schedule(new Runnable() {
+			public void run() {
+				synchronized(CentralSession.this) {
+					if (!connected)
+						return;
+
+					announce();
+					scheduleAnnounce();
+				}
+			}
+		}, ANNOUNCE_INTERVAL);
+	}
+
+	private void scheduleReconnect()
+	{
+		if (closed)
+			return;
+
+		timer = group.next().schedule(new Runnable() {
+			public void run() {
+				start();
+			}
+		}, reconnectDelay);
+		reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY);
+	}
+
+	private static void readAddresses(ByteBuffer buf, List out)
+	{
+		int count = Codec.getVarint(buf);
+		for (int i = 0; i < count; ++i)
+			out.add(Codec.getAddress(buf));
+	}
+
+	private static PeerInfo toPeerInfo(InetSocketAddress addr)
+	{
+		PeerInfo info = new PeerInfo();
+		info.address = addr.getAddress();
+		info.host = info.address.getHostAddress();
+		info.port = addr.getPort();
+		return info;
+	}
+
+	private void complete()
+	{
+		List callbacks;
+		List peers;
+		synchronized(this) {
+			if (pending.isEmpty())
+				return;
+
+			callbacks = new ArrayList(pending);
+			pending.clear();
+			peers = new ArrayList(known.values());
+		}
+
+		for (int i = 0; i < callbacks.size(); ++i)
+			((Callback) callbacks.get(i)).peersFound(peers);
+	}
+
+	public boolean handleWrite(SocketChannel ch, int count)
+	{
+		return true;
+	}
+
+	public boolean handleRead(SocketChannel ch, ByteBuffer buffer, int count)
+	{
+		try {
+			switch (buffer.get()) {
+			case 0x1B: {
+				InetSocketAddress addr = Codec.getAddress(buffer);
+				synchronized(this) {
+					self = addr;
+					known.remove(addr);
+					if (fetched != null)
+						fetched.remove(addr);
+				}
+				break;
+			} case 0x1C: {
+				int total = Codec.getVarint(buffer);
+				List addrs = new ArrayList();
+				readAddresses(buffer, addrs);
+				long v = buffer.getLong();
+
+				synchronized(this) {
+					if (fetched == null)
+						break;
+
+					if (fetchOffset == 0)
+						fetchVersion = v;
+					else if (v != fetchVersion && fetchRestarts < MAX_FETCH_RESTARTS) {
+						// The list changed under us, start over.
+						++fetchRestarts;
+						fetched.clear();
+						fetchOffset = 0;
+						requestPage();
+						break;
+					}
+
+					for (int i = 0; i < addrs.size(); ++i) {
+						InetSocketAddress addr = (InetSocketAddress) addrs.get(i);
+						if (!addr.equals(self))
+							fetched.put(addr, toPeerInfo(addr));
+					}
+
+					fetchOffset += addrs.size();
+					if (fetchOffset < total && !addrs.isEmpty()) {
+						requestPage();
+						break;
+					}
+
+					// The whole list, it always wins.
+					known.clear();
+					known.putAll(fetched);
+					fetched = null;
+					version = fetchVersion;
+					if (v != fetchVersion)
+						request();
+				}
+
+				complete();
+				break;
+			} case 0x1D: {
+				long v = buffer.getLong();
+				if (buffer.get() != 0) {
+					// Too far behind, ask for everything, the callback
+					// stays pending until that comes back.
+					synchronized(this) {
+						version = -1;
+						if (connected)
+							request();
+					}
+					break;
+				}
+
+				List added = new ArrayList();
+				List removed = new ArrayList();
+				readAddresses(buffer, added);
+				readAddresses(buffer, removed);
+
+				synchronized(this) {
+					// An older answer than the list we have, or
+					// one sent before we started fetching it again.
+					if (version >= 0 && v >= version) {
+						for (int i = 0; i < removed.size(); ++i)
+							known.remove(removed.get(i));
+						for (int i = 0; i < added.size(); ++i) {
+							InetSocketAddress addr = (InetSocketAddress) added.get(i);
+							if (!addr.equals(self) && !known.containsKey(addr))
+								known.put(addr, toPeerInfo(addr));
+						}
+						version = v;
+					}
+				}
+
+				complete();
+				break;
+			} default:
+				return false;
+			}
+		} catch (RuntimeException e) {
+			// Malformed reply.
+			e.printStackTrace();
+			return false;
+		}
+
+		return true;
+	}
+
+	public boolean handleConnection(SocketChannel ch)
+	{
+		synchronized(this) {
+			if (connection == null || connection.getChannel() != ch)
+				return false;
+
+			connected = true;
+			reconnectDelay = MIN_RECONNECT_DELAY;
+
+			// Answered with self before any list, the central point
+			// replies in order.
+			announce();
+			scheduleAnnounce();
+		}
+
+		return true;
+	}
+
+	public boolean handleConnectionClose(SocketChannel ch)
+	{
+		List failed;
+		boolean notify;
+		synchronized(this) {
+			if (connection == null || connection.getChannel() != ch)
+				return true;
+
+			// Once when we lose it, not on every failed reconnect.
+			notify = !closed && (connected || reconnectDelay == MIN_RECONNECT_DELAY);
+			connection = null;
+			connected = false;
+			if (timer != null)
+				timer.cancel();
+			failed = new ArrayList(pending);
+			pending.clear();
+			fetched = null;
+
+			// The central point may have restarted and counts versions
+			// from 0 again, a delta against ours would mean nothing.
+			known.clear();
+			version = -1;
+			scheduleReconnect();
+		}
+
+		IOException e = new IOException("lost the connection to the central point");
+		for (int i = 0; i < failed.size(); ++i)
+			((Callback) failed.get(i)).failed(e);
+
+		if (notify)
+			notifyFailed();
+		return true;
+	}
+
+	private void notifyFailed()
+	{
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				P2PChat.get().centralConnectionFailed();
+			}
+		});
+	}
+
+	public void handleWritabilityChanged(SocketChannel ch, boolean writable)
+	{
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * P2PChat - Peer-to-Peer Chat Application
+ *
+ * Copyright (c) 2014 Ahmed Samy  <f.fallen45@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package p2pchat;
+
+import java.nio.ByteBuffer;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * Comfort noise, sent when the speaker falls silent and every so often
+ * during the silence.  Not negotiated, any peer decodes it.  The payload
+ * is the frame's level in -dBFS, 0..127, as in RFC 3389; decoding makes
+ * one frame of white noise at that level, and the listener's
+ * JitterBuffer keeps generating more (see generate()) until the speaker
+ * talks again, so they hear the background level instead of dead air.
+*/
+public class ComfortNoiseCodec implements VoiceCodec {
+	public int getId()
+	{
+		return VoiceCodecs.COMFORT_NOISE;
+	}
+
+	public String getName()
+	{
+		return "Comfort noise";
+	}
+
+	public int maxEncodedSize(int pcmBytes)
+	{
+		return 1;
+	}
+
+	public int encode(byte[] pcm, int len, ByteBuffer out)
+	{
+		double level = VoiceActivityDetector.level(pcm, len);
+		out.put((byte) Math.max(0, Math.min(127, (int) Math.round(-level))));
+		return 1;
+	}
+
+	public int decode(ByteBuffer in, int len, byte[] pcm)
+	{
+		if (len < 1)
+			return 0;
+
+		int level = in.get() & 0x7F;
+		in.position(in.position() + len - 1);
+		generate(pcm, pcm.length, -level);
+		return pcm.length & ~1;
+	}
+
+	// Fill @len bytes of @pcm with white noise at @level dBFS.
+	public static void generate(byte[] pcm, int len, double level)
+	{
+		// Uniform noise in [-a, a] has a power of a^2 / 3.
+		double rms = 32768 * Math.pow(10, level / 20.0);
+		int a = (int) Math.min(Math.sqrt(3) * rms, Short.MAX_VALUE);
+		Random random = ThreadLocalRandom.current();
+		for (int j = 0; j + 1 < len; j += 2) {
+			int s = a > 0 ? random.nextInt(2 * a + 1) - a : 0;
+			pcm[j] = (byte) (s >> 8);
+			pcm[j + 1] = (byte) s;
+		}
+	}
+}
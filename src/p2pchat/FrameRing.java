@@ -0,0 +1,88 @@
+/*
+ * P2PChat - Peer-to-Peer Chat Application
+ *
+ * Copyright (c) 2014 Ahmed Samy  <f.fallen45@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package p2pchat;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Fixed ring of equally sized frames handed from one producer thread to
+ * one consumer thread without locks.  Frames are allocated once and
+ * reused: the producer fills the slot claim() returns and publish()es
+ * it, the consumer reads the slot peek() returns and release()s it.
+ * A full ring makes claim() return null, the producer decides what to
+ * drop.
+*/
+public class FrameRing {
+	private final byte[][] frames;
+	private final int mask;
+	private final AtomicLong head = new AtomicLong();	/* Next slot to fill, producer only */
+	private final AtomicLong tail = new AtomicLong();	/* Next slot to read, consumer only */
+
+	// @count is rounded up to a power of two.
+	public FrameRing(int count, int frameSize)
+	{
+		int n = Integer.highestOneBit(Math.max(count, 1) * 2 - 1);
+		frames = new byte[n][frameSize];
+		mask = n - 1;
+	}
+
+	// Producer: the slot to fill next, or null if the consumer is a full
+	// ring behind.
+	public byte[] claim()
+	{
+		long h = head.get();
+		if (h - tail.get() > mask)
+			return null;
+		return frames[(int) h & mask];
+	}
+
+	public void publish()
+	{
+		head.lazySet(head.get() + 1);
+	}
+
+	// Consumer: the oldest published frame, or null if there is none.
+	public byte[] peek()
+	{
+		long t = tail.get();
+		if (t == head.get())
+			return null;
+		return frames[(int) t & mask];
+	}
+
+	public void release()
+	{
+		tail.lazySet(tail.get() + 1);
+	}
+
+	public int size()
+	{
+		return (int) (head.get() - tail.get());
+	}
+
+	public int capacity()
+	{
+		return frames.length;
+	}
+}
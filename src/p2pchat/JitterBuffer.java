@@ -0,0 +1,311 @@
+/*
+ * P2PChat - Peer-to-Peer Chat Application
+ *
+ * Copyright (c) 2014 Ahmed Samy  <f.fallen45@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package p2pchat;
+
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+
+/*
+ * Adaptive jitter buffer for the voice of one speaker.
+ *
+ * put() files frames from the network by sequence number, in a ring
+ * of preallocated slots; poll() is called once per frame time by the
+ * playback thread and yields the next frame in order.  Playback starts
+ * (and restarts after the speaker goes quiet) only once the buffer
+ * holds the target depth.
+ *
+ * The target depth follows the interarrival jitter, estimated as in
+ * RFC 3550 from the sender's timestamps (milliseconds): enough frames
+ * to cover three times the jitter, between MIN_DEPTH and MAX_DEPTH.
+ * When the buffer runs well over target, a frame is skipped to bring
+ * latency back down.
+ *
+ * A missing frame, one with later frames already in, is concealed by
+ * replaying the last one at half the volume each time, then by silence
+ * after MAX_CONCEALED in a row.  Running dry is not loss: playback
+ * pauses and buffers up again from the next frame in sequence, which
+ * is where the speaker picks up after a silence (VAD) gap.  Frames
+ * arriving after their turn are counted late and dropped.
+ *
+ * Once a comfort noise frame has played, the silence that follows is
+ * filled with noise at its level (RFC 3389) instead of nothing, until
+ * the next voice frame plays.  The speaker refreshes comfort noise now
+ * and then while silent; without a frame for COMFORT_TIMEOUT (They hung
+ * up or stopped capturing) the noise stops too.
+*/
+public class JitterBuffer {
+	private static final int SLOTS = 64;	/* Power of two */
+	private static final int MIN_DEPTH = 2;
+	private static final int MAX_DEPTH = 15;
+	private static final int MAX_CONCEALED = 5;
+	private static final long COMFORT_TIMEOUT = 2000000000L;	/* Nanoseconds */
+
+	private final int frameBytes;
+	private final int frameMillis;
+	private final byte[][] slots;
+	private final int[] slotSeq;
+	private final boolean[] present;
+	private final boolean[] comfort;	/* Slot holds comfort noise */
+	private final byte[] last;	/* Last frame played, for concealment */
+
+	private boolean started;	/* Seen a frame since reset() */
+	private boolean playing;	/* Past the initial buffering */
+	private int nextSeq;	/* Next to play */
+	private int maxSeq;	/* Highest received */
+	private int concealed;	/* In a row */
+	private long lastArrival;
+	private int lastTimestamp;
+	private double jitter;	/* Milliseconds */
+	private long lastHeard;	/* System.nanoTime() */
+	private boolean inComfort;	/* Last frame played was comfort noise */
+	private double comfortLevel;	/* Its level, dBFS */
+
+	private long received;
+	private long played;
+	private long late;
+	private long lost;
+	private long skipped;
+	private long generated;
+
+	public JitterBuffer(int frameBytes, int frameMillis)
+	{
+		this.frameBytes = frameBytes;
+		this.frameMillis = frameMillis;
+		slots = new byte[SLOTS][frameBytes];
+		slotSeq = new int[SLOTS];
+		present = new boolean[SLOTS];
+		comfort = new boolean[SLOTS];
+		last = new byte[frameBytes];
+	}
+
+	public void put(int seq, int timestamp, ByteBuffer data)
+	{
+		put(seq, timestamp, data, false);
+	}
+
+	/*
+	 * Copies the remaining bytes of @data (Up to a frame) into the slot of
+	 * @seq.  @comfortNoise if it was decoded from a comfort noise frame.
+	*/
+	public synchronized void put(int seq, int timestamp, ByteBuffer data, boolean comfortNoise)
+	{
+		long now = System.nanoTime();
+		lastHeard = now;
+		++received;
+
+		if (!started) {
+			started = true;
+			nextSeq = seq;
+			maxSeq = seq;
+		} else {
+			// RFC 3550 6.4.1, J += (|D| - J) / 16
+			double d = (now - lastArrival) / 1e6 - (timestamp - lastTimestamp);
+			jitter += (Math.abs(d) - jitter) / 16;
+		}
+		lastArrival = now;
+		lastTimestamp = timestamp;
+
+		if (seq - nextSeq < 0) {
+			++late;
+			return;
+		}
+
+		if (seq - nextSeq >= SLOTS) {
+			// Far ahead of us, the speaker restarted or we stalled.
+			Arrays.fill(present, false);
+			nextSeq = seq;
+			maxSeq = seq;
+			playing = false;
+		}
+
+		int i = seq & (SLOTS - 1);
+		int n = Math.min(data.remaining(), frameBytes);
+		data.get(slots[i], 0, n);
+		Arrays.fill(slots[i], n, frameBytes, (byte) 0);
+		slotSeq[i] = seq;
+		present[i] = true;
+		comfort[i] = comfortNoise;
+		if (seq - maxSeq > 0)
+			maxSeq = seq;
+	}
+
+	/*
+	 * Fill @out with the next frame.  Returns false, leaving @out alone,
+	 * while buffering; concealment, silence and comfort noise count as a
+	 * frame.
+	*/
+	public synchronized boolean poll(byte[] out)
+	{
+		if (!started)
+			return false;
+
+		int target = getTargetDepth();
+		if (!playing) {
+			// A gap before the first frame is not loss, the speaker was quiet.
+			while (nextSeq - maxSeq < 0 && !isPresent(nextSeq))
+				++nextSeq;
+			if (depth() < target)
+				return generateComfort(out);
+			playing = true;
+		} else if (depth() > target * 2) {
+			release(nextSeq++);
+			++skipped;
+		}
+
+		int i = nextSeq & (SLOTS - 1);
+		if (isPresent(nextSeq)) {
+			System.arraycopy(slots[i], 0, out, 0, frameBytes);
+			System.arraycopy(slots[i], 0, last, 0, frameBytes);
+			present[i] = false;
+			concealed = 0;
+			inComfort = comfort[i];
+			if (inComfort)
+				comfortLevel = VoiceActivityDetector.level(out, frameBytes);
+			++played;
+			++nextSeq;
+			return true;
+		}
+
+		if (nextSeq - maxSeq > 0) {
+			// Ran dry: the speaker went quiet or the network is late.
+			// Nothing is lost yet, wait for nextSeq and buffer up again.
+			playing = false;
+			return generateComfort(out);
+		}
+
+		++lost;
+		if (++concealed <= MAX_CONCEALED)
+			attenuate(last);
+		else
+			Arrays.fill(last, (byte) 0);
+		System.arraycopy(last, 0, out, 0, frameBytes);
+		++nextSeq;
+		return true;
+	}
+
+	// Start over, as for a new speaker.
+	public synchronized void reset()
+	{
+		Arrays.fill(present, false);
+		started = false;
+		playing = false;
+		concealed = 0;
+		inComfort = false;
+		jitter = 0;
+	}
+
+	public synchronized long getLastHeard()
+	{
+		return lastHeard;
+	}
+
+	// Frames received and not yet played.
+	public synchronized int depth()
+	{
+		return started ? Math.max(maxSeq - nextSeq + 1, 0) : 0;
+	}
+
+	public synchronized int getTargetDepth()
+	{
+		int frames = (int) Math.ceil(3 * jitter / frameMillis);
+		return Math.max(MIN_DEPTH, Math.min(MAX_DEPTH, frames + 1));
+	}
+
+	public synchronized double getJitter()
+	{
+		return jitter;
+	}
+
+	public synchronized long getReceived()
+	{
+		return received;
+	}
+
+	public synchronized long getPlayed()
+	{
+		return played;
+	}
+
+	public synchronized long getLate()
+	{
+		return late;
+	}
+
+	public synchronized long getLost()
+	{
+		return lost;
+	}
+
+	public synchronized long getSkipped()
+	{
+		return skipped;
+	}
+
+	// Comfort noise frames made up while the speaker was silent.
+	public synchronized long getGenerated()
+	{
+		return generated;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return String.format("depth=%d/%d jitter=%.1fms received=%d played=%d late=%d lost=%d skipped=%d noise=%d",
+			depth(), getTargetDepth(), jitter, received, played, late, lost, skipped, generated);
+	}
+
+	// Between frames: noise at the last comfort noise level, if still fresh.
+	private boolean generateComfort(byte[] out)
+	{
+		if (!inComfort || System.nanoTime() - lastHeard >= COMFORT_TIMEOUT)
+			return false;
+
+		ComfortNoiseCodec.generate(out, frameBytes, comfortLevel);
+		++generated;
+		return true;
+	}
+
+	private boolean isPresent(int seq)
+	{
+		int i = seq & (SLOTS - 1);
+		return present[i] && slotSeq[i] == seq;
+	}
+
+	private void release(int seq)
+	{
+		if (isPresent(seq))
+			present[seq & (SLOTS - 1)] = false;
+	}
+
+	// Halve 16-bit big endian samples.
+	private static void attenuate(byte[] frame)
+	{
+		for (int i = 0; i + 1 < frame.length; i += 2) {
+			int s = (short) ((frame[i] << 8) | (frame[i + 1] & 0xFF)) >> 1;
+			frame[i] = (byte) (s >> 8);
+			frame[i + 1] = (byte) s;
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * P2PChat - Peer-to-Peer Chat Application
+ *
+ * Copyright (c) 2014 Ahmed Samy  <f.fallen45@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package p2pchat;
+
+import java.nio.ByteBuffer;
+
+/*
+ * G.711 u-law: a byte per sample, logarithmic, so quiet samples keep
+ * their precision.  Stateless both ways.
+*/
+public class MuLawCodec implements VoiceCodec {
+	private static final int BIAS = 0x84;
+	private static final int CLIP = 32635;
+	private static final short[] expand = new short[256];
+
+	static {
+		for (int i = 0; i < 256; ++i) {
+			int u = ~i & 0xFF;
+			int t = (((u & 0x0F) << 3) + BIAS) << ((u & 0x70) >> 4);
+			expand[i] = (short) ((u & 0x80) != 0 ? BIAS - t : t - BIAS);
+		}
+	}
+
+	public int getId()
+	{
+		return VoiceCodecs.MULAW;
+	}
+
+	public String getName()
+	{
+		return "G.711 u-law";
+	}
+
+	public int maxEncodedSize(int pcmBytes)
+	{
+		return pcmBytes / 2;
+	}
+
+	public int encode(byte[] pcm, int len, ByteBuffer out)
+	{
+		int n = len / 2;
+		for (int i = 0, j = 0; i < n; ++i, j += 2)
+			out.put(compress((short) ((pcm[j] << 8) | (pcm[j + 1] & 0xFF))));
+		return n;
+	}
+
+	public int decode(ByteBuffer in, int len, byte[] pcm)
+	{
+		int n = Math.min(len, pcm.length / 2);
+		for (int i = 0, j = 0; i < n; ++i, j += 2) {
+			short s = expand[in.get() & 0xFF];
+			pcm[j] = (byte) (s >> 8);
+			pcm[j + 1] = (byte) s;
+		}
+		in.position(in.position() + len - n);
+		return n * 2;
+	}
+
+	private static byte compress(int s)
+	{
+		int sign = (s >> 8) & 0x80;
+		if (sign != 0)
+			s = -s;
+		if (s > CLIP)
+			s = CLIP;
+		s += BIAS;
+
+		int exponent = 7;
+		for (int mask = 0x4000; (s & mask) == 0 && exponent > 0; mask >>= 1)
+			--exponent;
+		int mantissa = (s >> (exponent + 3)) & 0x0F;
+		return (byte) ~(sign | (exponent << 4) | mantissa);
+	}
+}
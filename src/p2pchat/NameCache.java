@@ -0,0 +1,185 @@
+/*
+ * P2PChat - Peer-to-Peer Chat Application
+ *
+ * Copyright (c) 2014 Ahmed Samy  <f.fallen45@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package p2pchat;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Host names of peer addresses, for display only: peers are found,
+ * compared and connected to by address.
+ *
+ * A reverse lookup can take seconds, so lookup() never does one: it
+ * answers with what it has (Or the address itself) and resolves in
+ * the background, then calls the listener so the UI can repaint.
+ * Names are kept for @ttl milliseconds, the least recently used ones
+ * are dropped past @maxEntries.
+*/
+public class NameCache
+{
+	private static class Entry
+	{
+		String name;		/* null while resolving */
+		long expiresAt;
+	}
+
+	private static NameCache defaultCache;
+
+	private final long ttl;
+	private final Map names;	/* InetAddress -> Entry, guarded by itself */
+	private final Executor resolver;
+
+	private volatile boolean enabled = true;
+	private volatile Runnable listener;
+
+	public NameCache(long ttl, final int maxEntries)
+	{
+		this.ttl = ttl;
+		this.names = new LinkedHashMap(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry eldest) {
+				return size() > maxEntries;
+			}
+		};
+		this.resolver = Executors.newFixedThreadPool(2, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "p2pchat-resolver");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public static synchronized NameCache getDefault()
+	{
+		if (defaultCache == null)
+			defaultCache = new NameCache(10 * 60 * 1000, 1024);
+
+		return defaultCache;
+	}
+
+	// Disabled, lookup() only ever returns addresses.
+	public void setEnabled(boolean enabled)
+	{
+		this.enabled = enabled;
+	}
+
+	// Called from a resolver thread whenever a name comes in.
+	public void setListener(Runnable listener)
+	{
+		this.listener = listener;
+	}
+
+	/*
+	 * The name of @address if we know it, its textual form otherwise.
+	 * Never blocks.
+	*/
+	public String lookup(final InetAddress address)
+	{
+		String literal = address.getHostAddress();
+		if (!enabled)
+			return literal;
+
+		long now = System.currentTimeMillis();
+		synchronized(names) {
+			Entry entry = (Entry) names.get(address);
+			if (entry != null && (entry.name == null || entry.expiresAt > now))
+				return entry.name != null ? entry.name : literal;
+
+			if (entry == null) {
+				entry = new Entry();
+				names.put(address, entry);
+			}
+			entry.name = null;
+		}
+
+		resolver.execute(new Runnable() {
+			public void run() {
+				resolve(address);
+			}
+		});
+		return literal;
+	}
+
+	/*
+	 * Same for an address typed or shown as text, anything that is not
+	 * an address literal is returned as is (Parsing it could mean a
+	 * forward lookup).
+	*/
+	public String lookup(String host)
+	{
+		if (!isLiteral(host))
+			return host;
+
+		try {
+			return lookup(InetAddress.getByName(host));
+		} catch (UnknownHostException e) {
+			return host;
+		}
+	}
+
+	private static boolean isLiteral(String host)
+	{
+		if (host.indexOf(':') != -1)
+			return true;	/* IPv6, no host name has a colon */
+
+		for (int i = 0; i < host.length(); ++i) {
+			char c = host.charAt(i);
+			if (c != '.' && (c < '0' || c > '9'))
+				return false;
+		}
+
+		return host.length() > 0;
+	}
+
+	private void resolve(InetAddress address)
+	{
+		// A fresh copy, getHostName() caches on the instance.
+		String name;
+		try {
+			name = InetAddress.getByAddress(address.getAddress()).getHostName();
+		} catch (UnknownHostException e) {
+			name = address.getHostAddress();
+		}
+
+		synchronized(names) {
+			Entry entry = (Entry) names.get(address);
+			if (entry == null)
+				return;
+
+			entry.name = name;
+			entry.expiresAt = System.currentTimeMillis() + ttl;
+		}
+
+		Runnable l = listener;
+		if (l != null)
+			l.run();
+	}
+}
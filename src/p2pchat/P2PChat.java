@@ -23,6 +23,7 @@
  */
 package p2pchat;
 
+import java.awt.Component;
 import java.awt.KeyEventDispatcher;
 import java.awt.KeyboardFocusManager;
 import java.awt.event.ActionEvent;
@@ -30,6 +31,8 @@ import java.awt.event.KeyEvent;
 
 import java.io.IOException;
 
+import java.nio.ByteBuffer;
+
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -38,6 +41,7 @@ import javax.sound.sampled.Line;
 
 import javax.swing.SwingUtilities;
 import javax.swing.text.DefaultCaret;
+import javax.swing.DefaultListCellRenderer;
 import javax.swing.DefaultListModel;
 import javax.swing.JFrame;
 import javax.swing.JButton;
@@ -66,11 +70,6 @@ public class P2PChat extends JFrame
 	private final DefaultListModel peerListModel;
 	private final DefaultListModel chatParticipantsModel;
 
-	private String centralHost;
-	private int centralPort;
-
-	private boolean hasPublishedSelf;
-
 	private final VoiceChatHandler voiceHandler = new VoiceChatHandler();
 
 	private static P2PChat instance;
@@ -160,10 +159,7 @@ public class P2PChat extends JFrame
 
 	public void setCentralInfo(String host, int port)
 	{
-		centralHost = host;
-		centralPort = port;
-
-		hasPublishedSelf = peer.publishSelf(host, port);
+		peer.openCentralSession(host, port);
 	}
 
 	@SuppressWarnings("unchecked")
@@ -213,6 +209,29 @@ public class P2PChat extends JFrame
 		jScrollPane3.setViewportView(chatParticipants);
 
 		peerList.setModel(peerListModel);
+		peerList.setCellRenderer(new DefaultListCellRenderer() {
+			// Entries stay host:port, the name is only shown.
+			public Component getListCellRendererComponent(JList list, Object value, int index,
+					boolean isSelected, boolean cellHasFocus) {
+				String entry = (String) value;
+				int sep = entry.lastIndexOf(':');
+				String host = entry.substring(0, sep);
+				String name = NameCache.getDefault().lookup(host);
+				if (!name.equals(host))
+					entry += " (" + name + ")";
+
+				return super.getListCellRendererComponent(list, entry, index, isSelected, cellHasFocus);
+			}
+		});
+		NameCache.getDefault().setListener(new Runnable() {
+			public void run() {
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						peerList.repaint();
+					}
+				});
+			}
+		});
 		peerList.addMouseListener(new java.awt.event.MouseAdapter() {
 			public void mouseClicked(java.awt.event.MouseEvent evt) {
 				peerListMouseClicked(evt);
@@ -269,8 +288,10 @@ public class P2PChat extends JFrame
 				if (peerInfo == null)
 					return;
 
-				String peerHost = peerInfo.substring(0, peerInfo.indexOf(":"));
-				if (peer.disconnectFrom(peerHost))
+				int sep = peerInfo.lastIndexOf(":");
+				String peerHost = peerInfo.substring(0, sep);
+				int peerPort = Integer.parseInt(peerInfo.substring(sep + 1));
+				if (peer.disconnectFrom(peerHost, peerPort))
 					chatTextArea.append("<Network> Successfully disconnected from: " + peerHost + "\n");
 			}
 		});
@@ -289,13 +310,16 @@ public class P2PChat extends JFrame
 					return;
 				}
 
+				String address;
 				try {
-					peer.connect(hostName, port);
+					address = peer.connect(hostName, port).getHostAddress();
 				} catch (IOException ex) {
 					JOptionPane.showMessageDialog(null, "Unable to establish a connection to " + hostName + ":" + portName + "!");
+					return;
 				}
 
-				peerListModel.addElement(hostName + ":" + port);
+				if (!peerListModel.contains(address + ":" + port))
+					peerListModel.addElement(address + ":" + port);
 			}
 		});
 		peerListPopup.add(mItemConnect);
@@ -359,8 +383,20 @@ public class P2PChat extends JFrame
 				chatTextArea.append("Commands available:\n" +
 					"/nick <new nickname> (Can contain spaces)\n" +
 					"/kick <nickname> (Can contain spaces)\n" +
-                                        "/connect <host> <port>"
+                                        "/connect <host> <port>\n" +
+					"/rtt (Round trip times of connected peers)\n" +
+					"/relay (Messages relayed and duplicates dropped)\n" +
+					"/voice (Voice capture and jitter buffer statistics)\n"
 				);
+			} else if (splitted[0].equals("/rtt")) {
+				chatTextArea.append(peer.rttReport());
+				chatTextField.setText("");
+			} else if (splitted[0].equals("/relay")) {
+				chatTextArea.append(peer.relayReport());
+				chatTextField.setText("");
+			} else if (splitted[0].equals("/voice")) {
+				chatTextArea.append(voiceReport());
+				chatTextField.setText("");
 			}
 
 			return;
@@ -378,11 +414,28 @@ public class P2PChat extends JFrame
 
 	private void findPeersButtonActionPerformed(java.awt.event.ActionEvent evt)
 	{
-		if (!hasPublishedSelf)
-			hasPublishedSelf = peer.publishSelf(centralHost, centralPort);
+		peer.discoverPeers(new CentralSession.Callback() {
+			public void peersFound(final List peers) {
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						showPeers(peers);
+					}
+				});
+			}
+
+			public void failed(IOException e) {
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						centralConnectionFailed();
+					}
+				});
+			}
+		});
+	}
 
-		List peers = peer.discoverPeers(centralHost, centralPort);
-		if (peers == null) {
+	private void showPeers(List peers)
+	{
+		if (peers.isEmpty()) {
 			chatTextArea.append("No peers were found.\n");
 			return;
 		}
@@ -402,7 +455,7 @@ public class P2PChat extends JFrame
 			if (peerInfo == null)
 				return;
 
-			int sep = peerInfo.indexOf(":");
+			int sep = peerInfo.lastIndexOf(":");
 			String peerHost = peerInfo.substring(0, sep);
 			int peerPort = Integer.parseInt(peerInfo.substring(sep + 1, peerInfo.length()));
 
@@ -451,6 +504,7 @@ public class P2PChat extends JFrame
 		if (idx != -1)
 			chatParticipantsModel.remove(idx);
 
+		voiceHandler.removeSpeaker(node);
 		if (!timeout)
 			chatTextArea.append(node.peerName + " has disconnected.\n");
 		else
@@ -464,8 +518,7 @@ public class P2PChat extends JFrame
 			if (peer.isChild(node)) {
 				while (chatParticipantsModel.contains(newName) || newName.equals(peer.peerName)) {
 					newName += "_";
-					node.peerName = newName;
-					peer.sendNameChangeRequest(node);
+					peer.sendNameChangeRequest(node, newName);
 				}
 			}
 
@@ -495,8 +548,35 @@ public class P2PChat extends JFrame
 		peer.sendAudioData(data, count);
 	}
 
-	public void peerTalk(byte[] data, int count)
+	// @data is a silent frame, its level sets the comfort noise.
+	public void transmitSilence(byte[] data, int count)
 	{
-		voiceHandler.feedData(data, count);
+		peer.sendComfortNoise(data, count);
+	}
+
+	// From the network threads.
+	public void peerTalk(Peer from, int seq, int timestamp, ByteBuffer data, boolean comfortNoise)
+	{
+		voiceHandler.feedData(from, seq, timestamp, data, comfortNoise);
+	}
+
+	// Capture counters, and the jitter buffer of each speaker.
+	private String voiceReport()
+	{
+		StringBuilder sb = new StringBuilder();
+		long captured = voiceHandler.getFramesCaptured();
+		long suppressed = voiceHandler.getFramesSuppressed();
+		sb.append(String.format("captured=%d overruns=%d mixing=%d clipped=%d\n",
+			captured, voiceHandler.getFramesOverrun(),
+			voiceHandler.getMixedSpeakers(), voiceHandler.getClippedSamples()));
+		sb.append(String.format("vad=%s suppressed=%d (%.1f%%) noise=%.1fdBFS\n",
+			voiceHandler.isVadEnabled() ? "on" : "off", suppressed,
+			captured == 0 ? 0.0 : suppressed * 100.0 / captured, voiceHandler.getNoiseFloor()));
+		for (Object obj : voiceHandler.getSpeakers().entrySet()) {
+			Map.Entry e = (Map.Entry) obj;
+			sb.append(((Peer) e.getKey()).peerName).append(": ").append(e.getValue()).append('\n');
+		}
+
+		return sb.toString();
 	}
 }
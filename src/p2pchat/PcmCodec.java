@@ -0,0 +1,58 @@
+/*
+ * P2PChat - Peer-to-Peer Chat Application
+ *
+ * Copyright (c) 2014 Ahmed Samy  <f.fallen45@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package p2pchat;
+
+import java.nio.ByteBuffer;
+
+// Uncompressed, for peers that know nothing better.
+public class PcmCodec implements VoiceCodec {
+	public int getId()
+	{
+		return VoiceCodecs.PCM;
+	}
+
+	public String getName()
+	{
+		return "PCM";
+	}
+
+	public int maxEncodedSize(int pcmBytes)
+	{
+		return pcmBytes;
+	}
+
+	public int encode(byte[] pcm, int len, ByteBuffer out)
+	{
+		out.put(pcm, 0, len);
+		return len;
+	}
+
+	public int decode(ByteBuffer in, int len, byte[] pcm)
+	{
+		int n = Math.min(len, pcm.length);
+		in.get(pcm, 0, n);
+		in.position(in.position() + len - n);
+		return n;
+	}
+}
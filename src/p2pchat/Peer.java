@@ -25,46 +25,118 @@ package p2pchat;
 
 import javax.swing.SwingUtilities;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
 
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 
-import java.util.Date;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import netlib.NetEventListener;
+import netlib.Codec;
 import netlib.Connection;
-import netlib.PeerInfo;
+import netlib.Dispatcher;
+import netlib.EventLoop;
+import netlib.EventLoopGroup;
+import netlib.Frame;
+import netlib.LatencyHistogram;
+import netlib.PooledBuffer;
 import netlib.Server;
+import netlib.Timeout;
 
 public class Peer implements NetEventListener
 {
+	private final EventLoopGroup group;
 	private final Server server;
 	private SocketChannel channel;	/* To identify other peers, not main.  */
 
 	public String peerName;
 	private int port;
+	private InetSocketAddress address;	/* host:port the peer listens on */
 
-	private final List children = new LinkedList();
-	private final List connections = new LinkedList();
-
-	private boolean awaitingPong = false;
-	private Date timeSinceLastPing = null;
-
-	public Peer(Peer peer)
+	/*
+	 * Every peer we're linked with (Either direction) is indexed by its
+	 * channel, nickname and listening address.  These are touched from
+	 * the event loop threads (Heartbeat and gossip timers), the dispatcher
+	 * threads running our handlers and the EDT, so they are concurrent
+	 * maps and only changed through addPeer(), renamePeer(),
+	 * setPeerAddress() and removePeer().
+	*/
+	private final Map children = new ConcurrentHashMap();		/* SocketChannel -> Peer */
+	private final Map peersByName = new ConcurrentHashMap();	/* String -> Peer */
+	private final Map peersByAddress = new ConcurrentHashMap();	/* InetSocketAddress -> Peer */
+	private final Map connections = new ConcurrentHashMap();	/* SocketChannel -> Connection */
+
+	// Heartbeat, see startHeartbeat().  Intervals are in milliseconds.
+	private long pingInterval = 30000;
+	private long pongTimeout = 15000;
+
+	private volatile boolean awaitingPong = false;
+	private volatile boolean timedOut = false;
+	private volatile long rtt = -1;		/* Nanoseconds, -1 until the first PONG */
+	private volatile boolean congested = false;	/* Over the high watermark */
+
+	// Round trip times of this peer, on our own node: of every peer.
+	private final LatencyHistogram rttHistogram = new LatencyHistogram();
+	private Timeout pingTimer;
+	private Timeout pongTimer;
+
+	private CentralSession central;
+
+	// Gossip, see gossip().  Members are listening addresses of peers we
+	// know of, directly connected or not.
+	private static final long MEMBER_TTL = 5 * 60 * 1000;
+	private static final int MAX_MEMBERS_PER_FRAME = 4096;
+	private static final long MEMBER_REFRESH = MEMBER_TTL / 10;	/* Lists to each peer at least this often */
+	private long gossipInterval = 10000;
+	private int gossipFanout = 3;
+	private final Map members = new ConcurrentHashMap();	/* InetSocketAddress -> Long, last heard of */
+	private final AtomicLong membersVersion = new AtomicLong();
+	private final AtomicLong membersHash = new AtomicLong();	/* Sum of memberHash() */
+	private volatile long sentMembersVersion = -1;	/* Ours when we last sent this peer our members */
+	private volatile long digestVersion = -1;	/* Theirs in the last digest this peer sent */
+	private volatile long membersSentAt;	/* When we last sent this peer our members */
+	private static Set localAddresses;	/* of String, see isLocalAddress() */
+
+	// Chat flooding, see relay().  A message is known by the node it
+	// started at and that node's sequence number; hops left is the TTL.
+	private static final int MESSAGE_TTL = 8;
+	private static final int SEEN_MESSAGES = 4096;
+	private long nodeId;
+	private final AtomicInteger messageSeq = new AtomicInteger();
+	private SeenCache seenMessages;
+	private final AtomicLong messagesReceived = new AtomicLong();
+	private final AtomicLong messagesDuplicate = new AtomicLong();
+	private final AtomicLong messagesRelayed = new AtomicLong();
+
+	private final AtomicInteger voiceSeq = new AtomicInteger();	/* Of the frames we send */
+	private VoiceCodec[] voiceEncoders;	/* One per VoiceCodecs.PREFERRED, sender thread only */
+	private static final VoiceCodec comfortNoise = VoiceCodecs.create(VoiceCodecs.COMFORT_NOISE);
+	private volatile int voiceCodec = VoiceCodecs.PCM;	/* What this peer gets, see 0x24 */
+	private byte[] voicePcm;	/* This peer's decoded frame, its handlers run serially */
+	private ByteBuffer voicePcmBuffer;
+
+	private Peer(SocketChannel ch)
 	{
+		group = null;
 		server = null;
-
-		if (peer != null)
-			children.add(peer);
+		channel = ch;
 	}
 
 	public Peer(Peer peer, String nick, String host, int port) throws IOException
@@ -72,149 +144,233 @@ public class Peer implements NetEventListener
 		peerName = nick;
 		this.port   = port;
 
-		if (peer != null)
-			children.add(peer);
+		// Handlers post to Swing and send to other peers, keep them
+		// off the selector threads.
+		group = new EventLoopGroup();
+		group.setDispatcher(Dispatcher.fixedPool(2));
+
+		nodeId = ThreadLocalRandom.current().nextLong();
+		seenMessages = new SeenCache(SEEN_MESSAGES);
+		voiceEncoders = new VoiceCodec[VoiceCodecs.PREFERRED.length];
+		for (int i = 0; i < voiceEncoders.length; ++i)
+			voiceEncoders[i] = VoiceCodecs.create(VoiceCodecs.PREFERRED[i]);
 
-		server = new Server("".equals(host) ? null : InetAddress.getByName(host), port, this);
-		new Thread(server).start();
+		server = new Server("".equals(host) ? null : InetAddress.getByName(host), port, this, group);
+		startGossip();
 	}
 
-	public void connect(String host, int port) throws IOException
+	// Returns the address @host resolved to, peers are known by address.
+	public InetAddress connect(String host, int port) throws IOException
 	{
-		Connection conn = new Connection(InetAddress.getByName(host), port, this);
-		connections.add(conn);
+		InetAddress address = InetAddress.getByName(host);
+		Connection conn = new Connection(address, port, this, group);
+		connections.put(conn.getChannel(), conn);
+		try {
+			conn.start();
+		} catch (IOException e) {
+			connections.remove(conn.getChannel());
+			throw e;
+		}
 
-		new Thread(conn).start();
+		return address;
 	}
 
-	public boolean publishSelf(String host, int port)
+	private void addPeer(Peer peer)
 	{
-		try {
-			try (Socket s = new Socket(host, port)) {
-				DataOutputStream out = new DataOutputStream(s.getOutputStream());
+		children.put(peer.channel, peer);
+		if (peer.peerName != null)
+			peersByName.put(peer.peerName, peer);
+		if (peer.address != null) {
+			peersByAddress.put(peer.address, peer);
+			learn(peer.address);
+		}
+	}
 
-				out.writeByte(0x1B);
-				out.writeInt(this.port);
+	private void renamePeer(Peer peer, String name)
+	{
+		if (peer.peerName != null)
+			peersByName.remove(peer.peerName, peer);
 
-				s.close();
-				return true;
-			}
-		} catch (IOException e) {
-			e.printStackTrace();
-			SwingUtilities.invokeLater(new Runnable() {
-				public void run() {
-					P2PChat.get().centralConnectionFailed();
-				}
-			});
-		}
+		peer.peerName = name;
+		if (name != null && children.containsKey(peer.channel))
+			peersByName.put(name, peer);
+	}
+
+	private void setPeerAddress(Peer peer, InetSocketAddress address)
+	{
+		if (peer.address != null)
+			peersByAddress.remove(peer.address, peer);
 
-		return false;
+		peer.address = address;
+		if (children.containsKey(peer.channel)) {
+			peersByAddress.put(address, peer);
+			learn(address);
+		}
 	}
 
-	// Check if @peer is our child (e.g. he connected to us)
-	public boolean isChild(Peer peer)
+	private void removePeer(Peer peer)
 	{
-		return server.hasChannel(peer.channel);
+		if (!children.remove(peer.channel, peer))
+			return;
+
+		if (peer.pingTimer != null)
+			peer.pingTimer.cancel();
+		if (peer.pongTimer != null)
+			peer.pongTimer.cancel();
+
+		if (peer.peerName != null)
+			peersByName.remove(peer.peerName, peer);
+		if (peer.address != null)
+			peersByAddress.remove(peer.address, peer);
 	}
 
 	/*
-	 * The following function attempts to get a list
-	 * of available peers from the central point.  See
-	 * HybridCentralPoint.java for more information.
-	 *
-	 * If this function fails to connect or find any peers,
-	 * a null is returned.
+	 * Announce ourselves to the central point at @host:@port and stay
+	 * connected to it, see CentralSession.
 	*/
-	public List discoverPeers(String host, int port)
+	// Returns at once, @host is looked up by the session.
+	public synchronized void openCentralSession(String host, int port)
 	{
-		try {
-			try (Socket s = new Socket(host, port)) {
-				DataOutputStream out = new DataOutputStream(s.getOutputStream());
-				out.writeByte(0x1A);
-
-				DataInputStream in = new DataInputStream(s.getInputStream());
-				int nr_peers = in.readInt();
-				if (nr_peers <= 0)
-					return null;
-
-				List peers = new LinkedList();
-				for (int i = 0; i < nr_peers; ++i) {
-					byte[] peerAddress = new byte[4];
-					in.read(peerAddress);
-					
-					String peerHost = InetAddress.getByAddress(peerAddress).getHostName();
-					int peerPort = in.readInt();
-
-					if (peerHost.equals(server.getAddress().getHostName()))
-						continue;
-
-					PeerInfo peerInfo = new PeerInfo();
-					peerInfo.port = peerPort;
-					peerInfo.host = peerHost;
-					
-					peers.add(peerInfo);
-				}
+		if (central != null)
+			central.close();
 
-				return peers;
-			}
-		} catch (IOException e) {
-			SwingUtilities.invokeLater(new Runnable() {
-				public void run() {
-					P2PChat.get().centralConnectionFailed();
-				}
-			});
+		central = new CentralSession(host, port, this.port, group);
+		central.start();
+	}
+
+	// @callback is called from a network thread.
+	public void discoverPeers(CentralSession.Callback callback)
+	{
+		CentralSession session;
+		synchronized(this) {
+			session = central;
 		}
 
-		return null;
+		if (session != null)
+			session.discover(callback);
+		else
+			callback.failed(new IOException("no central point"));
 	}
 
-	public void kick(final String name)
+	public void setHeartbeat(long pingInterval, long pongTimeout)
 	{
-		Iterator it = children.iterator();
-		while (it.hasNext()) {
-			Peer peer = (Peer) it.next();
-			if (name.equals(peer.peerName)) {
-				if (channel != peer.channel) {
-					server.close(peer.channel);
-					return;
-				} else {
-					Connection c = findConnection(peer.channel);
-					if (c != null) {
-						c.disconnect();
-						SwingUtilities.invokeLater(new Runnable() {
-							public void run() {
-								P2PChat.get().appendText("Network", "Disconnected from " + name);
-							}
-						});
-					}
-					return;
+		this.pingInterval = pingInterval;
+		this.pongTimeout = pongTimeout;
+	}
+
+	// Last measured round trip time to this peer in milliseconds, -1 if unknown.
+	public long getRtt()
+	{
+		return rtt < 0 ? -1 : rtt / 1000000L;
+	}
+
+	public LatencyHistogram getRttHistogram()
+	{
+		return rttHistogram;
+	}
+
+	private static String formatRtt(String name, LatencyHistogram h)
+	{
+		return String.format("%s: p50=%.1fms p99=%.1fms max=%.1fms (%d samples)\n", name,
+			h.getValueAtPercentile(50) / 1e6, h.getValueAtPercentile(99) / 1e6,
+			h.getMax() / 1e6, h.getCount());
+	}
+
+	// p50/p99/max round trip time of each peer and of all of them together.
+	public String rttReport()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (Object obj : children.values()) {
+			Peer p = (Peer) obj;
+			sb.append(formatRtt(p.peerName != null ? p.peerName : "unnamed", p.rttHistogram));
+			sb.append(String.format("  queued=%dB%s\n", queuedBytes(p.channel),
+				p.congested ? " (congested)" : ""));
+		}
+		sb.append(formatRtt("All peers", rttHistogram));
+		sb.append(group.getStats()).append('\n');
+
+		return sb.toString();
+	}
+
+	// Flooded messages heard, how many of them were copies, and how
+	// many we passed on.
+	public String relayReport()
+	{
+		long received = messagesReceived.get();
+		long duplicate = messagesDuplicate.get();
+		return String.format("received=%d duplicates=%d (%.1f%% suppressed) relayed=%d seen=%d/%d\n",
+			received, duplicate, received == 0 ? 0.0 : duplicate * 100.0 / received,
+			messagesRelayed.get(), seenMessages.size(), seenMessages.capacity());
+	}
+
+	/*
+	 * Textual forms of our own addresses, to spot ourselves in peer
+	 * lists without asking DNS.  Interfaces are only listed once.
+	*/
+	private static synchronized boolean isLocalAddress(String host)
+	{
+		if (localAddresses == null) {
+			localAddresses = new HashSet();
+			try {
+				Enumeration ifs = NetworkInterface.getNetworkInterfaces();
+				while (ifs != null && ifs.hasMoreElements()) {
+					Enumeration addrs = ((NetworkInterface) ifs.nextElement()).getInetAddresses();
+					while (addrs.hasMoreElements())
+						localAddresses.add(((InetAddress) addrs.nextElement()).getHostAddress());
 				}
+			} catch (SocketException e) {
+				e.printStackTrace();
 			}
 		}
+
+		return localAddresses.contains(host);
 	}
 
-	public boolean disconnectFrom(String hostName)
+	// Check if @peer is our child (e.g. he connected to us)
+	public boolean isChild(Peer peer)
 	{
-		// Check if we're connected to that host
-		for (Object obj : connections) {
-			Connection c = (Connection) obj;
-			String peerHost = c.getChannel().socket().getInetAddress().getHostName();
-			if (peerHost.equals(hostName)) {
-				c.disconnect();
-				return true;
-			}
+		return server.hasChannel(peer.channel);
+	}
+
+	public void kick(final String name)
+	{
+		Peer peer = (Peer) peersByName.get(name);
+		if (peer == null)
+			return;
+
+		Connection c = findConnection(peer.channel);
+		if (c == null) {
+			server.close(peer.channel);
+			return;
 		}
 
-		// Ok, we're not conencted to that peer, check if he's connected to us
-		for (Object obj : children) {
-			Peer peer = (Peer) obj;
-			if (server.hasChannel(peer.channel)) {
-				server.close(peer.channel);
-				return true;
+		c.disconnect();
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				P2PChat.get().appendText("Network", "Disconnected from " + name);
 			}
+		});
+	}
+
+	public boolean disconnectFrom(String host, int port)
+	{
+		Peer peer;
+		try {
+			peer = (Peer) peersByAddress.get(new InetSocketAddress(InetAddress.getByName(host), port));
+		} catch (IOException e) {
+			return false;
 		}
 
-		return false;
+		if (peer == null)
+			return false;
+
+		// Either we're connected to that peer or he's connected to us
+		Connection c = findConnection(peer.channel);
+		if (c != null)
+			c.disconnect();
+		else
+			server.close(peer.channel);
+		return true;
 	}
 
 	public void setName(String name)
@@ -225,69 +381,120 @@ public class Peer implements NetEventListener
 
 	public void sendMessage(String message, String rcpt)
 	{
-		for (Object obj : children) {
-			Peer peer = (Peer) obj;
-			if (peer.peerName.equals(rcpt)) {
-				sendMessage(message, peer);
-				break;
-			}
-		}
+		Peer peer = (Peer) peersByName.get(rcpt);
+		if (peer != null)
+			sendMessage(message, peer);
 	}
 
 	public void sendMessage(String message, Peer peer)
 	{
-		int len = message.length();
-		if (len == 0)
+		if (message.length() == 0)
 			return;
 
-		send(peer, mkbuffer((byte)0x1A, message, len).array());
+		// Only broadcasts are flooded, a private message stops at @peer.
+		int seq = messageSeq.incrementAndGet();
+		int ttl = peer == null ? MESSAGE_TTL : 0;
+		seenMessages.add(SeenCache.id(nodeId, seq));
+
+		PooledBuffer data = Frame.acquire(0x1A, 8 + Codec.varintSize(seq) + 1
+			+ Codec.stringSize(peerName) + Codec.stringSize(message));
+		data.buffer().putLong(nodeId);
+		Codec.putVarint(data.buffer(), seq);
+		data.buffer().put((byte) ttl);
+		Codec.putString(data.buffer(), peerName);
+		Codec.putString(data.buffer(), message);
+		data.buffer().flip();
+
+		send(peer, data);
 	}
 
-	public void sendNameChangeRequest(Peer peer)
+	// Give @peer a new nickname (Ours clashed with his), and tell him.
+	public void sendNameChangeRequest(Peer peer, String newName)
 	{
-		int len = peer.peerName.length();
-		if (len == 0)
+		renamePeer(peer, newName);
+
+		if (peer.peerName.length() == 0)
 			return;
 
 		sendMessage("Duplicate nickname!", peer);
-		send(peer, mkbuffer((byte)0x20, peer.peerName, len).array());
+		send(peer, mkbuffer((byte)0x20, peer.peerName));
 	}
 
+	/*
+	 * Voice goes out droppable, a stale frame is worth less than a fresh
+	 * one.  Receivers order frames by sequence number and measure jitter
+	 * with the timestamp (Milliseconds, any origin), see JitterBuffer.
+	 *
+	 * Each peer gets the codec it negotiated; the frame is encoded once
+	 * per codec in use, not once per peer.
+	*/
 	public void sendAudioData(byte[] data, int count)
 	{
-		ByteBuffer buffer = ByteBuffer.allocate(count * 2 + 1);
-		buffer.put((byte)0x21);
-		buffer.putInt(count);
-		buffer.put(data, 0, count);
+		int seq = voiceSeq.incrementAndGet();
+		int timestamp = (int) (System.nanoTime() / 1000000);
+		Object[] peers = children.values().toArray();
+		for (int c = 0; c < voiceEncoders.length; ++c) {
+			VoiceCodec codec = voiceEncoders[c];
+			PooledBuffer buffer = null;
+			for (int i = 0; i < peers.length; ++i) {
+				Peer p = (Peer) peers[i];
+				if (p.voiceCodec != codec.getId())
+					continue;
+
+				if (buffer == null)
+					buffer = encodeVoice(codec, seq, timestamp, data, count);
+				sendDirect(p.channel, buffer.retainedDuplicate(), true);
+			}
 
-		send(null, buffer.array());
+			if (buffer != null)
+				buffer.release();
+		}
 	}
 
-	private void putString(ByteBuffer buffer, String str, int len)
+	// The first frame of silence, as comfort noise to every peer whatever its codec.
+	public void sendComfortNoise(byte[] data, int count)
 	{
-		buffer.putInt(len);
-		for (int i = 0; i < len; ++i)
-			buffer.putChar(str.charAt(i));
+		PooledBuffer buffer = encodeVoice(comfortNoise, voiceSeq.incrementAndGet(),
+			(int) (System.nanoTime() / 1000000), data, count);
+		for (Object obj : children.values())
+			sendDirect(((Peer) obj).channel, buffer.retainedDuplicate(), true);
+		buffer.release();
 	}
 
-	private String getString(ByteBuffer buffer)
+	private static PooledBuffer encodeVoice(VoiceCodec codec, int seq, int timestamp, byte[] data, int count)
 	{
-		int len = buffer.getInt();
-		if (len == 0)
-			return null;
-
-		char[] data = new char[len];
-		for (int i = 0; i < len; ++i)
-			data[i] = buffer.getChar();
+		PooledBuffer buffer = Frame.acquire(0x21, 13 + codec.maxEncodedSize(count));
+		ByteBuffer out = buffer.buffer();
+		out.putInt(seq);
+		out.putInt(timestamp);
+		out.put((byte) codec.getId());
+		int at = out.position();
+		out.putInt(0);
+		out.putInt(at, codec.encode(data, count, out));
+		out.putInt(0, out.position() - Frame.HEADER_SIZE);	// maxEncodedSize() is only a bound
+		out.flip();
+
+		return buffer;
+	}
 
-		return new String(data);
+	// Voice codecs we can decode, best first.
+	private void sendCodecs(Peer to)
+	{
+		int[] ids = VoiceCodecs.PREFERRED;
+		PooledBuffer data = Frame.acquire(0x24, Codec.varintSize(ids.length) + ids.length);
+		Codec.putVarint(data.buffer(), ids.length);
+		for (int i = 0; i < ids.length; ++i)
+			data.buffer().put((byte) ids[i]);
+		data.buffer().flip();
+
+		sendDirect(to.channel, data);
 	}
 
-	private ByteBuffer mkbuffer(byte request, String str, int len)
+	private PooledBuffer mkbuffer(byte request, String str)
 	{
-		ByteBuffer out = ByteBuffer.allocate((len * 2) + 5);
-		out.put(request);
-		putString(out, str, len);
+		PooledBuffer out = Frame.acquire(request, Codec.stringSize(str));
+		Codec.putString(out.buffer(), str);
+		out.buffer().flip();
 
 		return out;
 	}
@@ -297,93 +504,348 @@ public class Peer implements NetEventListener
 		if (newName == null)
 			newName = peerName;
 
-		int len = newName.length();
-		if (len == 0)
+		if (newName.length() == 0)
 			return;
 
-		ByteBuffer out = mkbuffer((byte)0x1B, newName, len);
-		Iterator it = children.iterator();
-		while (it.hasNext())
-			send((Peer)it.next(), out.array());
+		send(null, mkbuffer((byte)0x1B, newName));
 		peerName = newName;
 	}
 
-	private void sendPeers(Peer peer)
+	private void sendPort(Peer peer)
 	{
-		// What we basically do here is that we send every single peer
-		// that is connected to us or we're connected to, to that peer.
+		// I know this is kind of a waste, but we have to use ByteBuffer
+		// to take care of the byte order.  Could of just packed the port
+		// into a byte array.
+		PooledBuffer buffer = Frame.acquire(0x1C, 4);
+		buffer.buffer().putInt(port);
+		buffer.buffer().flip();
 
 		Connection conn = findConnection(peer.channel);
-		for (Object obj : children) {
-			Peer p = (Peer) obj;
-			if (p.port != 0) {
-				ByteBuffer buffer = ByteBuffer.allocate(4096);
-				buffer.put((byte)0x1D);
-
-				String hostName = peer.channel.socket().getInetAddress().getHostAddress();
-				putString(buffer, hostName, hostName.length());
-				buffer.putInt(peer.port);
-
-				byte[] peerData = buffer.array();
-				if (conn != null)
-					conn.send(peerData);
-				else if (server.hasChannel(peer.channel))
-					server.send(peer.channel, peerData);
+		if (conn != null)
+			conn.send(buffer);
+		else
+			server.send(peer.channel, buffer);
+	}
+
+	/*
+	 * Send an already encoded frame to @peer (Or everyone if null), the
+	 * frame is encoded once and shared by every channel it goes to.
+	 * Takes ownership of @data, see netlib.PooledBuffer.
+	*/
+	private void send(Peer peer, PooledBuffer data)
+	{
+		send(peer, data, false);
+	}
+
+	private void send(Peer peer, PooledBuffer data, boolean droppable)
+	{
+		if (peer != null) {
+			sendDirect(peer.channel, data, droppable);
+			return;
+		}
+
+		for (Object obj : connections.values())
+			((Connection) obj).send(data.retainedDuplicate(), droppable);
+		server.broadcast(children.keySet(), data, droppable);	// Skips our outgoing connections
+	}
+
+	// Send to every peer but the one on @from.
+	private void relay(SocketChannel from, PooledBuffer data)
+	{
+		for (Object obj : connections.entrySet()) {
+			Map.Entry e = (Map.Entry) obj;
+			if (e.getKey() != from)
+				((Connection) e.getValue()).send(data.retainedDuplicate());
+		}
+
+		List to = new ArrayList(children.size());
+		for (Object ch : children.keySet())
+			if (ch != from)
+				to.add(ch);
+		server.broadcast(to, data);	// Skips our outgoing connections
+	}
+
+	// Send to a single peer, whichever side opened the connection.
+	private void sendDirect(SocketChannel ch, PooledBuffer data)
+	{
+		sendDirect(ch, data, false);
+	}
+
+	private void sendDirect(SocketChannel ch, PooledBuffer data, boolean droppable)
+	{
+		Connection c = findConnection(ch);
+		if (c != null)
+			c.send(data, droppable);
+		else
+			server.send(ch, data, droppable);
+	}
+
+	private long queuedBytes(SocketChannel ch)
+	{
+		Connection c = findConnection(ch);
+		return c != null ? c.getQueuedBytes() : server.getQueuedBytes(ch);
+	}
+
+	private EventLoop loopFor(SocketChannel ch)
+	{
+		Connection c = findConnection(ch);
+		return c != null ? c.getEventLoop() : server.getEventLoop(ch);
+	}
+
+	/*
+	 * Every peer gets a PING each pingInterval and is purged if the PONG
+	 * does not come back within pongTimeout.  This all runs off the timer
+	 * wheel of the peer's event loop, no thread per peer.
+	*/
+	private void startHeartbeat(final Peer peer)
+	{
+		EventLoop loop = loopFor(peer.channel);
+		if (loop == null)
+			return;
+
+		peer.pingTimer = loop.schedule(new Runnable() {
+			public void run() {
+				ping(peer);
 			}
+		}, pingInterval);
+	}
+
+	private void ping(final Peer peer)
+	{
+		if (findPeer(peer.channel) != peer)
+			return;
+
+		EventLoop loop = loopFor(peer.channel);
+		if (loop == null)
+			return;
+
+		if (!peer.awaitingPong) {
+			// The PONG echoes the token back, that's our RTT.
+			PooledBuffer data = Frame.acquire(0x1E, 8);
+			data.buffer().putLong(System.nanoTime());
+			data.buffer().flip();
+
+			peer.awaitingPong = true;
+			sendDirect(peer.channel, data);
+
+			peer.pongTimer = loop.schedule(new Runnable() {
+				public void run() {
+					if (peer.awaitingPong)
+						purge(peer);
+				}
+			}, pongTimeout);
 		}
+
+		startHeartbeat(peer);
 	}
 
-	private void sendPort(Peer peer)
+	private void purge(Peer peer)
 	{
-		// I know this is kind of a waste, but we have to use ByteBuffer
-		// to take care of the byte order.  Could of just packed the port
-		// into a byte array.
-		ByteBuffer buffer = ByteBuffer.allocate(5);
-		buffer.put((byte)0x1C);
-		buffer.putInt(port);
+		// Disconnected peer, handleConnectionClose() tells the UI
+		peer.timedOut = true;
+
+		Connection c = findConnection(peer.channel);
+		if (c != null)
+			c.disconnect();
+		else
+			server.close(peer.channel);
+	}
 
-		Connection conn = findConnection(peer.channel);
-		if (conn != null)
-			conn.send(buffer.array());
-		else if (server.hasChannel(peer.channel))
-			server.send(peer.channel, buffer.array());
+	public void setGossip(long interval, int fanout)
+	{
+		this.gossipInterval = interval;
+		this.gossipFanout = fanout;
 	}
 
-	private void send(Peer peer, byte[] data)
+	/*
+	 * Membership gossip.  Every gossipInterval a digest of our members
+	 * (0x22: version, hash and count) goes to gossipFanout random peers.
+	 * One whose members differ answers with its list (0x1D), or, if it
+	 * already sent us that version, with its own digest so that we send
+	 * ours.  Lists only travel when digests disagree, a new member
+	 * reaches everyone in O(log N) rounds.
+	 *
+	 * Digests leave out both ends of the link, each side knows the other
+	 * but not itself.  Members we stop hearing of are forgotten after
+	 * MEMBER_TTL, the ones we are connected to are refreshed every round.
+	 * Only that direct contact makes a member fresher: lists carry how
+	 * long ago each member was last heard of, and a list never brings a
+	 * member back younger than that, so a dead one ages out everywhere
+	 * instead of being passed around forever.  For live members to stay
+	 * fresh further away, every peer gets our list at least every
+	 * MEMBER_REFRESH, digests agreeing or not.
+	*/
+	private void startGossip()
 	{
-		for (Object obj : connections)
-			((Connection) obj).send(data);
+		group.next().schedule(new Runnable() {
+			public void run() {
+				try {
+					gossip();
+				} finally {
+					startGossip();
+				}
+			}
+		}, gossipInterval);
+	}
 
-		if (peer == null) {
-			for (Object o : children) {
-				Peer p = (Peer) o;
-				if (server.hasChannel(p.channel))
-					server.send(p.channel, data);
+	private void gossip()
+	{
+		long now = System.currentTimeMillis();
+		for (Object addr : peersByAddress.keySet())
+			learn((InetSocketAddress) addr, now);
+
+		for (Object obj : members.entrySet()) {
+			Map.Entry e = (Map.Entry) obj;
+			if (((Long) e.getValue()).longValue() < now - MEMBER_TTL
+					&& members.remove(e.getKey(), e.getValue())) {
+				membersHash.addAndGet(-memberHash((InetSocketAddress) e.getKey()));
+				membersVersion.incrementAndGet();
 			}
-		} else if (server.hasChannel(peer.channel))
-			server.send(peer.channel, data);
+		}
+
+		Object[] peers = children.values().toArray();
+		for (int i = 0; i < peers.length; ++i)
+			if (now - ((Peer) peers[i]).membersSentAt >= MEMBER_REFRESH)
+				sendMembers((Peer) peers[i]);
+
+		int n = Math.min(gossipFanout, peers.length);
+		Random random = ThreadLocalRandom.current();
+		for (int i = 0; i < n; ++i) {
+			// Partial shuffle, n distinct peers.
+			int j = i + random.nextInt(peers.length - i);
+			Object tmp = peers[i];
+			peers[i] = peers[j];
+			peers[j] = tmp;
+
+			sendDigest((Peer) peers[i], false);
+		}
 	}
 
-	private Connection findConnection(SocketChannel ch)
+	// Heard from @addr just now.
+	private boolean learn(InetSocketAddress addr)
 	{
-		for (Object obj : connections) {
-			Connection c = (Connection) obj;
-			if (c.getChannel() == ch)
-				return c;
+		return learn(addr, System.currentTimeMillis());
+	}
+
+	// @addr was last heard of at @heard.  Returns true if it is new to us.
+	private boolean learn(InetSocketAddress addr, long heard)
+	{
+		if (addr.getPort() == port && isLocalAddress(addr.getAddress().getHostAddress()))
+			return false;
+		if (heard <= System.currentTimeMillis() - MEMBER_TTL)
+			return false;
+
+		Long value = Long.valueOf(heard);
+		while (true) {
+			Long prev = (Long) members.putIfAbsent(addr, value);
+			if (prev == null)
+				break;
+			if (prev.longValue() >= heard || members.replace(addr, prev, value))
+				return false;
 		}
 
-		return null;
+		membersHash.addAndGet(memberHash(addr));
+		membersVersion.incrementAndGet();
+		return true;
 	}
 
-	private Peer findPeer(SocketChannel ch)
+	private static long memberHash(InetSocketAddress addr)
+	{
+		long h = addr.getPort();
+		byte[] bytes = addr.getAddress().getAddress();
+		for (int i = 0; i < bytes.length; ++i)
+			h = h * 31 + (bytes[i] & 0xFF);
+
+		// Spread the bits, digests are sums of these.
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	// Our members without @other (The other end of a digest).
+	private long digestHash(Peer other)
+	{
+		long hash = membersHash.get();
+		if (other.address != null && members.containsKey(other.address))
+			hash -= memberHash(other.address);
+		return hash;
+	}
+
+	private int digestCount(Peer other)
+	{
+		int count = members.size();
+		if (other.address != null && members.containsKey(other.address))
+			--count;
+		return count;
+	}
+
+	private void sendDigest(Peer to, boolean reply)
+	{
+		int count = digestCount(to);
+		PooledBuffer data = Frame.acquire(0x22, 8 + 8 + Codec.varintSize(count) + 1);
+		data.buffer().putLong(membersVersion.get());
+		data.buffer().putLong(digestHash(to));
+		Codec.putVarint(data.buffer(), count);
+		data.buffer().put((byte) (reply ? 1 : 0));
+		data.buffer().flip();
+
+		sendDirect(to.channel, data);
+	}
+
+	// Every member but @to itself and how long ago we heard of it
+	// (Milliseconds), in a single 0x1D.
+	private void sendMembers(Peer to)
 	{
-		for (Object obj : children) {
-			Peer peer = (Peer) obj;
-			if (peer.channel == ch)
-				return peer;
+		long version = membersVersion.get();
+		long now = System.currentTimeMillis();
+		Object[] entries = members.entrySet().toArray();
+		InetSocketAddress[] addrs = new InetSocketAddress[Math.min(entries.length, MAX_MEMBERS_PER_FRAME)];
+		int[] ages = new int[addrs.length];
+		int count = 0;
+		int size = 0;
+		for (int i = 0; i < entries.length && count < addrs.length; ++i) {
+			Map.Entry e = (Map.Entry) entries[i];
+			InetSocketAddress addr = (InetSocketAddress) e.getKey();
+			if (addr.equals(to.address))
+				continue;
+
+			long age = now - ((Long) e.getValue()).longValue();
+			if (age >= MEMBER_TTL)
+				continue;	// Expiring, don't hand it on
+
+			addrs[count] = addr;
+			ages[count] = (int) Math.max(0, age);
+			size += Codec.addressSize(addr) + Codec.varintSize(ages[count]);
+			++count;
 		}
 
-		return null;
+		to.sentMembersVersion = version;
+		to.membersSentAt = now;
+		if (count == 0)
+			return;
+
+		PooledBuffer data = Frame.acquire(0x1D, Codec.varintSize(count) + size);
+		Codec.putVarint(data.buffer(), count);
+		for (int i = 0; i < count; ++i) {
+			Codec.putAddress(data.buffer(), addrs[i]);
+			Codec.putVarint(data.buffer(), ages[i]);
+		}
+		data.buffer().flip();
+
+		sendDirect(to.channel, data);
+	}
+
+	private Connection findConnection(SocketChannel ch)
+	{
+		return (Connection) connections.get(ch);
+	}
+
+	private Peer findPeer(SocketChannel ch)
+	{
+		return (Peer) children.get(ch);
 	}
 
 	public boolean handleWrite(SocketChannel ch, int count)
@@ -393,97 +855,177 @@ public class Peer implements NetEventListener
 
 	public boolean handleRead(final SocketChannel ch, ByteBuffer buffer, int count)
 	{
-		while (buffer.hasRemaining()) {
-			byte request = buffer.get();
+		byte request = buffer.get();
+
+		switch (request) {
+		case 0x1A: {	// message received
+			Peer p = findPeer(ch);
+			if (p == null) {
+				System.out.println("[Message received] Unable to find peer");
+				return false;
+			}
 
-			switch (request) {
-			case 0x1A: {	// message received
-				Peer p = findPeer(ch);
-				if (p == null) {
-					System.out.println("[Message received] Unable to find peer");
-					return false;
+			int start = buffer.position();
+			long origin = buffer.getLong();
+			int seq = Codec.getVarint(buffer);
+			int ttlAt = buffer.position();
+			int ttl = buffer.get() & 0xFF;
+			final String sender  = Codec.getString(buffer);
+			final String message = Codec.getString(buffer);
+
+			messagesReceived.incrementAndGet();
+			if (!seenMessages.add(SeenCache.id(origin, seq))) {
+				messagesDuplicate.incrementAndGet();
+				break;
+			}
+
+			if (ttl > 1) {
+				ByteBuffer payload = buffer.duplicate();
+				payload.position(start);
+				PooledBuffer out = Frame.acquire(0x1A, payload.remaining());
+				int base = out.buffer().position();
+				out.buffer().put(payload);
+				out.buffer().put(base + ttlAt - start, (byte) (ttl - 1));
+				out.buffer().flip();
+
+				relay(ch, out);
+				messagesRelayed.incrementAndGet();
+			}
+
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					P2PChat.get().appendText(sender, message);
 				}
+			});
+			break;
+		} case 0x1B: {	// nickname changed
+			final String name = Codec.getString(buffer);
+			final Peer peer = findPeer(ch);
 
-				final String message = getString(buffer);
-				final String sender  = p.peerName;
+			if (peer != null) {
+				final String oldName = peer.peerName;
 				SwingUtilities.invokeLater(new Runnable() {
 					public void run() {
-						P2PChat.get().appendText(sender, message);
+						P2PChat.get().peerNameChanged(peer, oldName, name);
 					}
 				});
-				break;
-			} case 0x1B: {	// nickname changed
-				final String name = getString(buffer);
-				final Peer peer = findPeer(ch);
-
-				if (peer != null) {
-					final String oldName = peer.peerName;
-					SwingUtilities.invokeLater(new Runnable() {
-						public void run() {
-							P2PChat.get().peerNameChanged(peer, oldName, name);
-						}
-					});
-                                        peer.peerName = name;
-				}
-				break;
-			} case 0x1C: {	// Acknowledge port
-				int port = buffer.getInt();
-				Peer peer = findPeer(ch);
-				if (peer != null)
-					peer.port = port;
-				break;
-			} case 0x1D: {
-				// A peer sending us another peer he's connected to.
-				final String hostName = getString(buffer);
-				final int port = buffer.getInt();
+				renamePeer(peer, name);
+			}
+			break;
+		} case 0x1C: {	// Acknowledge port
+			int port = buffer.getInt();
+			Peer peer = findPeer(ch);
+			if (peer != null) {
+				peer.port = port;
+				setPeerAddress(peer, new InetSocketAddress(ch.socket().getInetAddress(), port));
+			}
+			break;
+		} case 0x1D: {
+			// Peers another peer knows of and how long ago, see gossip().
+			long now = System.currentTimeMillis();
+			int nr_peers = Codec.getVarint(buffer);
+			final List learned = new ArrayList();
+			for (int i = 0; i < nr_peers; ++i) {
+				InetSocketAddress addr = Codec.getAddress(buffer);
+				int age = Codec.getVarint(buffer);
+				if (age < 0 || age > MEMBER_TTL)
+					continue;	// Would never expire, or already has
+				if (learn(addr, now - age))
+					learned.add(addr);
+			}
 
-				if (hostName.equals(server.getAddress().getHostName()) && port == this.port)
-					return true;
+			if (learned.isEmpty())
+				break;
 
-				SwingUtilities.invokeLater(new Runnable() {
-					public void run() {
-						P2PChat.get().peerAcked(findPeer(ch).peerName, hostName, port);
+			final Peer from = findPeer(ch);
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					for (int i = 0; i < learned.size(); ++i) {
+						InetSocketAddress addr = (InetSocketAddress) learned.get(i);
+						P2PChat.get().peerAcked(from != null ? from.peerName : null,
+							addr.getAddress().getHostAddress(), addr.getPort());
 					}
-				});
-				break;
-			} case 0x1E: {	// PING
-				byte[] data = new byte[1];
-				data[0] = 0x1F;
-
-				Connection c = findConnection(ch);
-				if (c != null)
-					c.send(data);
-				else
-					server.send(ch, data);
-				break;
-			} case 0x1F: {	// PONG
-				Peer peer = findPeer(ch);
-				if (peer != null && peer.awaitingPong)
-					peer.awaitingPong = false;
-				break;
-			} case 0x20: {	// Nick name change request
-				// A peer has told us that our nickname is duplicate and
-				// has assigned to us a new nickname...  change to that nickname.
-				peerName = getString(buffer);
+				}
+			});
+			break;
+		} case 0x1E: {	// PING
+			PooledBuffer data = Frame.acquire(0x1F, 8);
+			data.buffer().putLong(buffer.getLong());
+			data.buffer().flip();
+
+			sendDirect(ch, data);
+			break;
+		} case 0x1F: {	// PONG
+			long token = buffer.getLong();
+			Peer peer = findPeer(ch);
+			if (peer != null && peer.awaitingPong) {
+				peer.rtt = System.nanoTime() - token;
+				peer.rttHistogram.record(peer.rtt);
+				rttHistogram.record(peer.rtt);
+				peer.awaitingPong = false;
+				if (peer.pongTimer != null)
+					peer.pongTimer.cancel();
+			}
+			break;
+		} case 0x20: {	// Nick name change request
+			// A peer has told us that our nickname is duplicate and
+			// has assigned to us a new nickname...  change to that nickname.
+			peerName = Codec.getString(buffer);
                                 SwingUtilities.invokeLater(new Runnable() {
                                     public void run() {
                                         P2PChat.get().appendText("Network", "Your name was forcibly changed to " + peerName + " due to duplication!");
                                     }
                                 });
+			break;
+		} case 0x21: {	// Voice, played from its jitter buffer rather than the EDT
+			Peer p = findPeer(ch);
+			int seq = buffer.getInt();
+			int timestamp = buffer.getInt();
+			VoiceCodec codec = VoiceCodecs.decoder(buffer.get() & 0xFF);
+			int len = buffer.getInt();
+			if (p == null || codec == null || len < 0 || len > buffer.remaining())
 				break;
-			} case 0x21: {
-				final int len = buffer.getInt();
-				final byte data[] = new byte[len];
-				buffer.get(data, 0, count);
 
-				SwingUtilities.invokeLater(new Runnable() {
-					public void run() {
-						P2PChat.get().peerTalk(data, len);
-					}
-				});
-			} default:
+			if (p.voicePcm == null) {
+				p.voicePcm = new byte[VoiceChatHandler.FRAME_BYTES];
+				p.voicePcmBuffer = ByteBuffer.wrap(p.voicePcm);
+			}
+			p.voicePcmBuffer.clear();
+			p.voicePcmBuffer.limit(codec.decode(buffer, len, p.voicePcm));
+			P2PChat.get().peerTalk(p, seq, timestamp, p.voicePcmBuffer,
+				codec.getId() == VoiceCodecs.COMFORT_NOISE);
+			break;
+		} case 0x22: {	// Membership digest, see gossip()
+			long version = buffer.getLong();
+			long hash = buffer.getLong();
+			int nr_members = Codec.getVarint(buffer);
+			boolean reply = buffer.get() != 0;
+
+			Peer peer = findPeer(ch);
+			if (peer == null)
 				break;
+
+			if (hash != digestHash(peer) || nr_members != digestCount(peer)) {
+				if (peer.sentMembersVersion != membersVersion.get())
+					sendMembers(peer);
+				else if (!reply && peer.digestVersion != version)
+					sendDigest(peer, true);	/* They have members we lack */
 			}
+			peer.digestVersion = version;
+			break;
+		} case 0x24: {	// Voice codecs the peer decodes, best first
+			Peer p = findPeer(ch);
+			int n = Codec.getVarint(buffer);
+			if (p == null || n < 0 || n > buffer.remaining())
+				break;
+
+			int[] ids = new int[n];
+			for (int i = 0; i < n; ++i)
+				ids[i] = buffer.get() & 0xFF;
+			p.voiceCodec = VoiceCodecs.negotiate(ids);
+			break;
+		} default:
+			break;
 		}
 
 		return true;
@@ -491,55 +1033,20 @@ public class Peer implements NetEventListener
 
 	public boolean handleConnection(final SocketChannel ch)
 	{
-		final Peer peer = new Peer(this);
-		children.add(peer);
-
-		peer.channel = ch;
+		final Peer peer = new Peer(ch);
 		peer.port    = port;
 
-		send(peer, mkbuffer((byte)0x1B, peerName, peerName.length()).array());
-		sendPort(peer);
-		sendPeers(peer);
-
-		new Thread() {
-			@Override
-			public void run() {
-				try {
-					Thread.sleep(30000);
-				} catch (InterruptedException e) {
-				}
-
-				byte[] data = new byte[1];
-				data[0] = 0x1E;
-
-				Connection c = findConnection(ch);
-				while ((c != null && c.isConnected()) || server.hasChannel(ch)) {
-					if (peer.awaitingPong
-						&& peer.timeSinceLastPing != null && new Date().after(peer.timeSinceLastPing)) {
-						// Disconnected peer, purge
-						SwingUtilities.invokeLater(new Runnable() {
-							public void run() {
-								P2PChat.get().peerDisconnected(peer, true);
-							}
-						});
-						children.remove(peer);
-						return;
-					}
+		// We know where outgoing connections listen, incoming ones tell us (0x1C)
+		if (findConnection(ch) != null)
+			peer.address = (InetSocketAddress) ch.socket().getRemoteSocketAddress();
+		addPeer(peer);
 
-					if (c != null)
-						c.send(data);
-					else
-						server.send(ch, data);
+		send(peer, mkbuffer((byte)0x1B, peerName));
+		sendPort(peer);
+		sendMembers(peer);
+		sendCodecs(peer);
 
-					peer.awaitingPong = true;
-					peer.timeSinceLastPing = new Date();
-					try {
-						Thread.sleep(30000);
-					} catch (InterruptedException e) {
-					}
-				}
-			}
-		}.start();
+		startHeartbeat(peer);
 
 		SwingUtilities.invokeLater(new Runnable() {
 			public void run() {
@@ -549,23 +1056,35 @@ public class Peer implements NetEventListener
 		return true;
 	}
 
+	public void handleWritabilityChanged(SocketChannel ch, boolean writable)
+	{
+		Peer peer = findPeer(ch);
+		if (peer != null)
+			peer.congested = !writable;
+	}
+
 	public boolean handleConnectionClose(SocketChannel ch)
 	{
 		final Peer peer = findPeer(ch);
 		if (peer != null && peer.channel == ch) {
 			SwingUtilities.invokeLater(new Runnable() {
 				public void run() {
-					P2PChat.get().peerDisconnected(peer, false);
+					P2PChat.get().peerDisconnected(peer, peer.timedOut);
 				}
 			});
 
-			children.remove(peer);
+			removePeer(peer);
+			connections.remove(ch);
 			return true;
 		}
 
+		// An outgoing connection that never got through.
+		final boolean failed = connections.remove(ch) != null;
+
 		SwingUtilities.invokeLater(new Runnable() {
 			public void run() {
-				P2PChat.get().appendText("Network", "Unable to find disconnected peer!");
+				P2PChat.get().appendText("Network",
+					failed ? "Unable to connect to peer." : "Unable to find disconnected peer!");
 			}
 		});
 
@@ -0,0 +1,142 @@
+/*
+ * P2PChat - Peer-to-Peer Chat Application
+ *
+ * Copyright (c) 2014 Ahmed Samy  <f.fallen45@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package p2pchat;
+
+import java.util.Arrays;
+
+/*
+ * Bounded set of message ids, to drop the copies of a flooded message
+ * that reach us along other paths.  Ids are (origin, sequence) folded
+ * into 64 bits; with a few thousand live entries a collision, which
+ * would drop one message, is not a concern.
+ *
+ * Open addressing over a power of two table, with a FIFO ring to forget
+ * the oldest id once full.  Removal uses backward shift deletion, so
+ * there are no tombstones and lookups stay short.  0 marks an empty
+ * slot, an id that folds to 0 is remapped.
+*/
+public class SeenCache {
+	private final long[] table;
+	private final long[] ring;
+	private final int mask;
+	private int head;
+	private int size;
+
+	// Remember the last @capacity ids.
+	public SeenCache(int capacity)
+	{
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive");
+
+		int n = Integer.highestOneBit(capacity * 2 - 1) << 1;	// Load factor <= 0.5
+		table = new long[n];
+		ring = new long[capacity];
+		mask = n - 1;
+	}
+
+	public static long id(long origin, long sequence)
+	{
+		long h = origin ^ (sequence * 0x9E3779B97F4A7C15L);
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h != 0 ? h : 1;
+	}
+
+	// Returns false if @id was already seen.
+	public synchronized boolean add(long id)
+	{
+		int i = slot(id);
+		if (table[i] == id)
+			return false;
+
+		if (size == ring.length) {
+			remove(ring[head]);
+			--size;
+			i = slot(id);
+		}
+
+		table[i] = id;
+		ring[head] = id;
+		head = (head + 1) % ring.length;
+		++size;
+		return true;
+	}
+
+	public synchronized boolean contains(long id)
+	{
+		return table[slot(id)] == id;
+	}
+
+	public synchronized int size()
+	{
+		return size;
+	}
+
+	public int capacity()
+	{
+		return ring.length;
+	}
+
+	public synchronized void clear()
+	{
+		Arrays.fill(table, 0);
+		head = 0;
+		size = 0;
+	}
+
+	// Slot holding @id, or the empty one it would go in.
+	private int slot(long id)
+	{
+		int i = (int) id & mask;
+		while (table[i] != 0 && table[i] != id)
+			i = (i + 1) & mask;
+		return i;
+	}
+
+	private void remove(long id)
+	{
+		int i = slot(id);
+		if (table[i] != id)
+			return;
+
+		// Shift later entries of the probe run back into the hole.
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (table[j] == 0)
+				break;
+
+			int k = (int) table[j] & mask;	// Home slot of table[j]
+			if (i <= j ? (i < k && k <= j) : (i < k || k <= j))
+				continue;
+
+			table[i] = table[j];
+			i = j;
+		}
+		table[i] = 0;
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * P2PChat - Peer-to-Peer Chat Application
+ *
+ * Copyright (c) 2014 Ahmed Samy  <f.fallen45@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package p2pchat;
+
+/*
+ * Energy based voice activity detection on captured frames.
+ *
+ * A frame is speech when its level is MARGIN_DB above the noise floor,
+ * and at least MIN_SPEECH_DB.  The floor starts at the level of the
+ * first frame, then follows quiet frames quickly and loud ones slowly,
+ * so a change of room or fan noise is learned within seconds while
+ * speech does not raise it much.  After speech, frames keep counting
+ * as speech for the hangover, so word endings and short pauses are
+ * not clipped.
+ *
+ * Sender thread only; the counters can be read from anywhere.
+*/
+public class VoiceActivityDetector {
+	public static final int SPEECH = 0;
+	public static final int SILENCE_START = 1;	/* First silent frame, time for comfort noise */
+	public static final int SILENCE = 2;
+
+	private static final double MARGIN_DB = 9;
+	private static final double MIN_SPEECH_DB = -55;
+
+	private final int hangoverFrames;
+	private volatile double noise;	/* dBFS, from the first frame on */
+	private int hangover;
+	private boolean talking;
+
+	private volatile long frames;
+	private volatile long suppressed;
+
+	public VoiceActivityDetector(int hangoverFrames)
+	{
+		this.hangoverFrames = hangoverFrames;
+	}
+
+	// Classify a frame of 16-bit big endian PCM.
+	public int process(byte[] pcm, int len)
+	{
+		double level = level(pcm, len);
+		if (frames == 0)
+			noise = level;
+		boolean speech = level > noise + MARGIN_DB && level > MIN_SPEECH_DB;
+
+		if (level < noise)
+			noise += (level - noise) * 0.5;
+		else
+			noise += (level - noise) * (speech ? 0.002 : 0.02);
+
+		++frames;
+		if (speech) {
+			hangover = hangoverFrames;
+			talking = true;
+			return SPEECH;
+		}
+
+		if (hangover > 0) {
+			--hangover;
+			return SPEECH;
+		}
+
+		++suppressed;
+		if (talking) {
+			talking = false;
+			return SILENCE_START;
+		}
+		return SILENCE;
+	}
+
+	public double getNoiseFloor()
+	{
+		return noise;
+	}
+
+	public long getFrames()
+	{
+		return frames;
+	}
+
+	// Frames not sent (Comfort noise markers included).
+	public long getSuppressed()
+	{
+		return suppressed;
+	}
+
+	// Mean power of the frame, dB relative to full scale.
+	public static double level(byte[] pcm, int len)
+	{
+		int n = len / 2;
+		if (n == 0)
+			return -96;
+
+		double sum = 0;
+		for (int i = 0, j = 0; i < n; ++i, j += 2) {
+			int s = (short) ((pcm[j] << 8) | (pcm[j + 1] & 0xFF));
+			sum += (double) s * s;
+		}
+		return 10 * Math.log10(sum / n / (32768.0 * 32768.0) + 1e-10);
+	}
+}
@@ -23,10 +23,17 @@
  */
 package p2pchat;
 
+import java.nio.ByteBuffer;
+
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioSystem;
@@ -37,16 +44,83 @@ import javax.sound.sampled.Mixer;
 import javax.sound.sampled.SourceDataLine;
 import javax.sound.sampled.TargetDataLine;
 
+/*
+ * Voice capture and playback.
+ *
+ * The capture thread (run()) sleeps on a condition until capture is
+ * started, then reads the microphone in fixed 20 ms frames with
+ * blocking reads, straight into the slots of a FrameRing.  A sender
+ * thread takes frames off the ring and hands them to the network, so a
+ * slow send never stalls the line.  If the sender falls a whole ring
+ * behind, new frames are read into a scratch buffer and dropped.
+ *
+ * The sender only passes on speech: once the VoiceActivityDetector
+ * hears silence, a comfort noise frame goes out, then one every
+ * COMFORT_REFRESH frames until the speaker talks again.  Listeners fill
+ * the gaps with noise at that level, see JitterBuffer.
+ *
+ * Incoming voice goes to a JitterBuffer per speaker, straight from the
+ * network threads.  A playback thread wakes every frame time, takes a
+ * frame from each speaker's buffer, mixes them and writes the one mixed
+ * frame to the output line, so neither the network nor Swing ever waits
+ * on the sound card.
+*/
 public class VoiceChatHandler implements Runnable {
+	public static final AudioFormat FORMAT = new AudioFormat(8000.0f, 16, 1, true, true);
+	public static final int FRAME_MILLIS = 20;
+	public static final int FRAME_BYTES = (int) FORMAT.getSampleRate() * FRAME_MILLIS / 1000
+		* FORMAT.getFrameSize();
+	private static final int RING_FRAMES = 16;	/* 320 ms */
+	private static final int LINE_FRAMES = 4;	/* Line buffer, in frames */
+	private static final int HANGOVER_FRAMES = 15;	/* 300 ms */
+	private static final int COMFORT_REFRESH = 25;	/* 500 ms, well inside JitterBuffer.COMFORT_TIMEOUT */
+	private static final long SPEAKER_IDLE = 5000000000L;	/* Nanoseconds before a quiet speaker is forgotten */
+
 	private TargetDataLine input;
-	private SourceDataLine output;
+	private volatile SourceDataLine output;
 
-	private final AtomicInteger running = new AtomicInteger();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition started = lock.newCondition();
+	private boolean capturing;	/* Guarded by lock */
+
+	private final FrameRing ring = new FrameRing(RING_FRAMES, FRAME_BYTES);
+	private final byte[] scratch = new byte[FRAME_BYTES];	/* Frames the ring had no room for */
+	private final Thread sender;
+
+	private final AtomicLong framesCaptured = new AtomicLong();
+	private final AtomicLong framesOverrun = new AtomicLong();
+	private final VoiceActivityDetector vad = new VoiceActivityDetector(HANGOVER_FRAMES);
+	private volatile boolean vadEnabled = true;
+
+	private final Map speakers = new ConcurrentHashMap();	/* Object -> JitterBuffer */
+	private final byte[] playback = new byte[FRAME_BYTES];	/* A speaker's frame, then the mix */
+	private final AudioMixer mixer = new AudioMixer(FRAME_BYTES);
+	private volatile int mixedSpeakers;	/* In the last tick */
 
 	public VoiceChatHandler()
 	{
 		input  = null;
 		output = null;
+
+		Thread capture = new Thread(this, "p2pchat-capture");
+		capture.setDaemon(true);
+		capture.start();
+
+		sender = new Thread(new Runnable() {
+			public void run() {
+				send();
+			}
+		}, "p2pchat-voice-sender");
+		sender.setDaemon(true);
+		sender.start();
+
+		Thread player = new Thread(new Runnable() {
+			public void run() {
+				play();
+			}
+		}, "p2pchat-playback");
+		player.setDaemon(true);
+		player.start();
 	}
 
 	public boolean isSatisified()
@@ -102,78 +176,259 @@ public class VoiceChatHandler implements Runnable {
 
 	public void setInput(Line line)
 	{
-		input = (TargetDataLine) line;
-		if (input != null) {
-			try {
-				input.open(new AudioFormat(8000.0f, 16, 1, true, true));
-			} catch (LineUnavailableException e) {
-				e.printStackTrace();
+		lock.lock();
+		try {
+			boolean wasCapturing = capturing;
+			stopCapture();
+			if (input != null)
+				input.close();
+
+			input = (TargetDataLine) line;
+			if (input != null) {
+				try {
+					input.open(FORMAT, FRAME_BYTES * LINE_FRAMES);
+				} catch (LineUnavailableException e) {
+					e.printStackTrace();
+				}
 			}
+
+			if (wasCapturing)
+				startCapture();
+		} finally {
+			lock.unlock();
 		}
 	}
 
-	public void setOutput(Line line)
+	public synchronized void setOutput(Line line)
 	{
-		output = (SourceDataLine) line;
-		if (output != null) {
+		if (output != null)
+			output.close();
+
+		SourceDataLine out = (SourceDataLine) line;
+		if (out != null) {
 			try {
-				output.open(new AudioFormat(8000.0f, 16, 1, true, true));
+				out.open(FORMAT, FRAME_BYTES * LINE_FRAMES);
+				out.start();
 			} catch (LineUnavailableException e) {
 				e.printStackTrace();
 			}
 		}
+		output = out;
 	}
 
 	public void toggleCapture()
 	{
-		if (running.get() == 0)
-			running.set(1);
-		else
-			running.set(0);
+		lock.lock();
+		try {
+			if (capturing)
+				stopCapture();
+			else
+				startCapture();
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	public void startCapture()
 	{
-		if (running.get() == 0)
-			running.set(1);
+		lock.lock();
+		try {
+			if (capturing || input == null || !input.isOpen())
+				return;
+
+			capturing = true;
+			input.flush();
+			input.start();
+			started.signalAll();
+		} finally {
+			lock.unlock();
+		}
 	}
 
+	// A read in progress returns short and its frame is thrown away.
 	public void stopCapture()
 	{
-		if (running.get() == 1)
-			running.set(0);
+		lock.lock();
+		try {
+			if (!capturing)
+				return;
+
+			capturing = false;
+			input.stop();
+			input.flush();
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	public boolean isCapturing()
 	{
-		return running.get() == 1;
+		lock.lock();
+		try {
+			return capturing;
+		} finally {
+			lock.unlock();
+		}
 	}
 
-	public void feedData(byte[] data, int count)
+	public long getFramesCaptured()
 	{
-		if (output != null)
-			output.write(data, 0, count);
+		return framesCaptured.get();
+	}
+
+	// Frames dropped because the sender was a whole ring behind.
+	public long getFramesOverrun()
+	{
+		return framesOverrun.get();
+	}
+
+	// A frame of @speaker's voice, or of comfort noise, any thread.
+	public void feedData(Object speaker, int seq, int timestamp, ByteBuffer data, boolean comfortNoise)
+	{
+		JitterBuffer jb = (JitterBuffer) speakers.get(speaker);
+		if (jb == null) {
+			jb = new JitterBuffer(FRAME_BYTES, FRAME_MILLIS);
+			JitterBuffer prev = (JitterBuffer) speakers.putIfAbsent(speaker, jb);
+			if (prev != null)
+				jb = prev;
+		}
+		jb.put(seq, timestamp, data, comfortNoise);
+	}
+
+	public void removeSpeaker(Object speaker)
+	{
+		speakers.remove(speaker);
+	}
+
+	// With it off every captured frame is sent, silence included.
+	public void setVadEnabled(boolean enabled)
+	{
+		vadEnabled = enabled;
+	}
+
+	public boolean isVadEnabled()
+	{
+		return vadEnabled;
+	}
+
+	// Captured frames not sent for being silent.
+	public long getFramesSuppressed()
+	{
+		return vad.getSuppressed();
+	}
+
+	public double getNoiseFloor()
+	{
+		return vad.getNoiseFloor();
+	}
+
+	// Speakers heard in the last frame.
+	public int getMixedSpeakers()
+	{
+		return mixedSpeakers;
+	}
+
+	// Samples clamped when mixing, all time.
+	public long getClippedSamples()
+	{
+		return mixer.getClipped();
+	}
+
+	// Speaker -> JitterBuffer, live.
+	public Map getSpeakers()
+	{
+		return speakers;
 	}
 
 	@Override
 	public void run()
 	{
 		while (true) {
-			if (running.get() == 0) {
-				try {
-					Thread.sleep(3000);
-				} catch (InterruptedException ex) {
-					;
-				}
+			TargetDataLine line;
+			lock.lock();
+			try {
+				while (!capturing)
+					started.await();
+				line = input;
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				lock.unlock();
 			}
 
-			// Signaled, retrieve data if any.
-			int available = input.available();
-			if (available > 0) {
-				byte data[] = new byte[available];
-				int count = input.read(data, 0, available);
+			byte[] frame = ring.claim();
+			if (frame == null)
+				frame = scratch;
+
+			if (line.read(frame, 0, FRAME_BYTES) < FRAME_BYTES)
+				continue;	// Stopped mid-frame
 
-				P2PChat.get().transmitVoice(data, count);
+			framesCaptured.incrementAndGet();
+			if (frame == scratch) {
+				framesOverrun.incrementAndGet();
+				continue;
+			}
+
+			ring.publish();
+			LockSupport.unpark(sender);
+		}
+	}
+
+	private void play()
+	{
+		long frameNanos = FRAME_MILLIS * 1000000L;
+		long next = System.nanoTime();
+		while (true) {
+			next += frameNanos;
+			long now = System.nanoTime();
+			if (next - now > 0)
+				LockSupport.parkNanos(next - now);
+			else if (now - next > LINE_FRAMES * frameNanos)
+				next = now;	// Stalled, don't try to catch up
+
+			mixer.clear();
+			for (Iterator it = speakers.values().iterator(); it.hasNext(); ) {
+				JitterBuffer jb = (JitterBuffer) it.next();
+				if (jb.poll(playback))
+					mixer.add(playback);
+				else if (now - jb.getLastHeard() > SPEAKER_IDLE)
+					it.remove();
+			}
+
+			mixedSpeakers = mixer.getSources();
+			if (mixedSpeakers == 0)
+				continue;
+
+			mixer.mix(playback);
+			SourceDataLine out = output;
+			if (out != null)
+				out.write(playback, 0, FRAME_BYTES);
+		}
+	}
+
+	private void send()
+	{
+		int silent = 0;	/* Frames since the last one sent */
+		while (true) {
+			byte[] frame = ring.peek();
+			if (frame == null) {
+				LockSupport.park(this);
+				continue;
+			}
+
+			try {
+				int state = vadEnabled ? vad.process(frame, FRAME_BYTES) : VoiceActivityDetector.SPEECH;
+				if (state == VoiceActivityDetector.SPEECH) {
+					P2PChat.get().transmitVoice(frame, FRAME_BYTES);
+					silent = 0;
+				} else if (state == VoiceActivityDetector.SILENCE_START || ++silent >= COMFORT_REFRESH) {
+					P2PChat.get().transmitSilence(frame, FRAME_BYTES);
+					silent = 0;
+				}
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			} finally {
+				ring.release();
 			}
 		}
 	}
@@ -0,0 +1,51 @@
+/*
+ * P2PChat - Peer-to-Peer Chat Application
+ *
+ * Copyright (c) 2014 Ahmed Samy  <f.fallen45@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package p2pchat;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Voice compression, between capture and the network.
+ *
+ * PCM in and out is 16-bit big endian mono, VoiceChatHandler.FORMAT.
+ * An encoder may carry state from one frame to the next, so each
+ * outgoing stream needs its own instance, but every frame must decode
+ * on its own: frames get lost and dropped, and one instance decodes
+ * all speakers.  Ids go on the wire, see VoiceCodecs.
+*/
+public interface VoiceCodec {
+	public int getId();
+
+	public String getName();
+
+	// Most bytes encode() writes for @pcmBytes of PCM.
+	public int maxEncodedSize(int pcmBytes);
+
+	// Encode @len bytes of @pcm into @out, returns the bytes written.
+	public int encode(byte[] pcm, int len, ByteBuffer out);
+
+	// Decode @len bytes of @in into @pcm, returns the PCM bytes written,
+	// at most @pcm.length.
+	public int decode(ByteBuffer in, int len, byte[] pcm);
+}
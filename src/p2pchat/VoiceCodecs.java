@@ -0,0 +1,79 @@
+/*
+ * P2PChat - Peer-to-Peer Chat Application
+ *
+ * Copyright (c) 2014 Ahmed Samy  <f.fallen45@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package p2pchat;
+
+/*
+ * The voice codecs we speak, by wire id.  Peers list theirs in 0x24 on
+ * connecting; we send each peer the first of PREFERRED it listed, and
+ * plain PCM to peers that listed nothing.
+*/
+public final class VoiceCodecs {
+	public static final int PCM = 0;	/* 128 kbit/s */
+	public static final int MULAW = 1;	/* G.711 u-law, 64 kbit/s */
+	public static final int ADPCM = 2;	/* IMA ADPCM, ~33 kbit/s */
+	public static final int COMFORT_NOISE = 3;	/* Silence marker, never negotiated */
+
+	public static final int[] PREFERRED = { ADPCM, MULAW, PCM };
+
+	private static final VoiceCodec[] decoders = {
+		new PcmCodec(), new MuLawCodec(), new AdpcmCodec(), new ComfortNoiseCodec()
+	};
+
+	private VoiceCodecs()
+	{
+	}
+
+	// A fresh instance for encoding a stream, null if @id is unknown.
+	public static VoiceCodec create(int id)
+	{
+		switch (id) {
+		case PCM:
+			return new PcmCodec();
+		case MULAW:
+			return new MuLawCodec();
+		case ADPCM:
+			return new AdpcmCodec();
+		case COMFORT_NOISE:
+			return new ComfortNoiseCodec();
+		default:
+			return null;
+		}
+	}
+
+	// Shared by all speakers, decoding is stateless.
+	public static VoiceCodec decoder(int id)
+	{
+		return id >= 0 && id < decoders.length ? decoders[id] : null;
+	}
+
+	// Our pick among the codec ids @theirs.
+	public static int negotiate(int[] theirs)
+	{
+		for (int i = 0; i < PREFERRED.length; ++i)
+			for (int j = 0; j < theirs.length; ++j)
+				if (theirs[j] == PREFERRED[i])
+					return PREFERRED[i];
+		return PCM;
+	}
+}